@@ -0,0 +1,427 @@
+package com.aidan.cmel;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+// Not part of jcmel: a prototype of clox's stack VM, to measure what one would
+// buy on the JVM against the closure tree from --compile. It compiles the parsed
+// AST to byte[] chunks with clox's opcodes and runs them on an Object[] value
+// stack, the way src/vm.c does, but only for what the scripts in this folder
+// use: numbers, strings, globals, locals, if, while, for, calls and print.
+// There are no closures, classes or runtime error reporting, so it only ever
+// runs faster than a full VM would.
+//
+//   javac -d out $(find src -name '*.java') bench/StackVm.java
+//   java -cp out com.aidan.cmel.StackVm bench/fib.cmel
+public class StackVm {
+    private static final byte CONSTANT = 0, NIL = 1, POP = 2, GET_LOCAL = 3, SET_LOCAL = 4, GET_GLOBAL = 5,
+            SET_GLOBAL = 6, DEFINE_GLOBAL = 7, ADD = 8, SUBTRACT = 9, MULTIPLY = 10, DIVIDE = 11, LESS = 12,
+            GREATER = 13, EQUAL = 14, NOT = 15, NEGATE = 16, JUMP = 17, JUMP_IF_FALSE = 18, LOOP = 19, CALL = 20,
+            RETURN = 21, PRINT = 22, CLOCK = 23;
+
+    private static final int FRAMES_MAX = 10_000;
+
+    private static final class Function {
+        final String name;
+        int arity;
+        byte[] code = new byte[64];
+        int length;
+        final List<Object> constantList = new ArrayList<>();
+        Object[] constants;
+
+        Function(String name) {
+            this.name = name;
+        }
+
+        void emit(int value) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte) value;
+        }
+
+        @Override
+        public String toString() {
+            return "<fn " + name + ">";
+        }
+    }
+
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private final Object[] globals = new Object[256];
+
+    private int global(String name) {
+        return globalSlots.computeIfAbsent(name, key -> globalSlots.size());
+    }
+
+    // One per function being compiled. Locals live in the stack slots after
+    // the callee's, in the order they're declared, as in clox.
+    private final class Compiler {
+        final Function function;
+        final List<String> locals = new ArrayList<>();
+        final List<Integer> depths = new ArrayList<>();
+        int depth;
+
+        Compiler(String name) {
+            function = new Function(name);
+            locals.add("");
+            depths.add(0);
+        }
+
+        Function finish() {
+            function.emit(NIL);
+            function.emit(RETURN);
+            function.constants = function.constantList.toArray();
+            return function;
+        }
+
+        void statement(Statement statement) {
+            if (statement instanceof Statement.ExpressionStatement expression) {
+                expression(expression.expression);
+                function.emit(POP);
+            } else if (statement instanceof Statement.Var var) {
+                if (var.initializer != null)
+                    expression(var.initializer);
+                else
+                    function.emit(NIL);
+                define(var.name.getLexeme());
+            } else if (statement instanceof Statement.Function declaration) {
+                functionDeclaration(declaration);
+            } else if (statement instanceof Statement.Block block) {
+                depth++;
+                for (Statement inner : block.statements) statement(inner);
+                endScope();
+            } else if (statement instanceof Statement.IfStatement ifStatement) {
+                expression(ifStatement.condition);
+                int thenJump = jump(JUMP_IF_FALSE);
+                function.emit(POP);
+                statement(ifStatement.thenBranch);
+                int elseJump = jump(JUMP);
+                patch(thenJump);
+                function.emit(POP);
+                if (ifStatement.elseBranch != null) statement(ifStatement.elseBranch);
+                patch(elseJump);
+            } else if (statement instanceof Statement.While loop) {
+                int start = function.length;
+                expression(loop.condition);
+                int exit = jump(JUMP_IF_FALSE);
+                function.emit(POP);
+                statement(loop.body);
+                loop(start);
+                patch(exit);
+                function.emit(POP);
+            } else if (statement instanceof Statement.For loop) {
+                depth++;
+                if (loop.initializer != null) statement(loop.initializer);
+                int start = function.length;
+                int exit = -1;
+                if (loop.condition != null) {
+                    expression(loop.condition);
+                    exit = jump(JUMP_IF_FALSE);
+                    function.emit(POP);
+                }
+                statement(loop.body);
+                if (loop.increment != null) {
+                    expression(loop.increment);
+                    function.emit(POP);
+                }
+                loop(start);
+                if (exit >= 0) {
+                    patch(exit);
+                    function.emit(POP);
+                }
+                endScope();
+            } else if (statement instanceof Statement.Return ret) {
+                if (ret.value != null)
+                    expression(ret.value);
+                else
+                    function.emit(NIL);
+                function.emit(RETURN);
+            } else {
+                throw new UnsupportedOperationException(statement.getClass().getSimpleName());
+            }
+        }
+
+        void functionDeclaration(Statement.Function declaration) {
+            String name = declaration.name.getLexeme();
+            if (depth > 0) {
+                // declared first, so the body can call itself
+                function.emit(NIL);
+                locals.add(name);
+                depths.add(depth);
+            }
+
+            Compiler compiler = new Compiler(name);
+            compiler.function.arity = declaration.parameters.size();
+            compiler.depth = 1;
+            for (Token parameter : declaration.parameters) {
+                compiler.locals.add(parameter.getLexeme());
+                compiler.depths.add(1);
+            }
+            for (Statement statement : declaration.body) compiler.statement(statement);
+
+            constant(compiler.finish());
+            if (depth > 0) {
+                function.emit(SET_LOCAL);
+                function.emit(locals.size() - 1);
+                function.emit(POP);
+            } else {
+                function.emit(DEFINE_GLOBAL);
+                function.emit(global(name));
+            }
+        }
+
+        void expression(Expression expression) {
+            if (expression instanceof Expression.Literal literal) {
+                if (literal.value == null)
+                    function.emit(NIL);
+                else
+                    constant(literal.value);
+            } else if (expression instanceof Expression.Grouping grouping) {
+                expression(grouping.expression);
+            } else if (expression instanceof Expression.Variable variable) {
+                variable(variable.name.getLexeme(), GET_LOCAL, GET_GLOBAL);
+            } else if (expression instanceof Expression.Assign assign) {
+                expression(assign.value);
+                variable(assign.name.getLexeme(), SET_LOCAL, SET_GLOBAL);
+            } else if (expression instanceof Expression.Unary unary) {
+                expression(unary.right);
+                function.emit(unary.operator.getType() == TokenType.MINUS ? NEGATE : NOT);
+            } else if (expression instanceof Expression.Binary binary) {
+                expression(binary.left);
+                expression(binary.right);
+                switch (binary.operator.getType()) {
+                    case PLUS -> function.emit(ADD);
+                    case MINUS -> function.emit(SUBTRACT);
+                    case STAR -> function.emit(MULTIPLY);
+                    case SLASH -> function.emit(DIVIDE);
+                    case LESS -> function.emit(LESS);
+                    case GREATER -> function.emit(GREATER);
+                    case EQUAL_EQUAL -> function.emit(EQUAL);
+                    // as clox compiles them
+                    case LESS_EQUAL -> { function.emit(GREATER); function.emit(NOT); }
+                    case GREATER_EQUAL -> { function.emit(LESS); function.emit(NOT); }
+                    case BANG_EQUAL -> { function.emit(EQUAL); function.emit(NOT); }
+                    default -> throw new UnsupportedOperationException(binary.operator.getLexeme());
+                }
+            } else if (expression instanceof Expression.Call call) {
+                call(call);
+            } else {
+                throw new UnsupportedOperationException(expression.getClass().getSimpleName());
+            }
+        }
+
+        // print and clock are instructions here, as print is in clox
+        void call(Expression.Call call) {
+            if (call.callee instanceof Expression.Variable variable) {
+                switch (variable.name.getLexeme()) {
+                    case "print" -> {
+                        expression(call.arguments.get(0));
+                        function.emit(PRINT);
+                        return;
+                    }
+                    case "clock" -> {
+                        function.emit(CLOCK);
+                        return;
+                    }
+                }
+            }
+
+            expression(call.callee);
+            for (Expression argument : call.arguments) expression(argument);
+            function.emit(CALL);
+            function.emit(call.arguments.size());
+        }
+
+        void variable(String name, byte local, byte global) {
+            int slot = locals.lastIndexOf(name);
+            if (slot > 0) {
+                function.emit(local);
+                function.emit(slot);
+            } else {
+                function.emit(global);
+                function.emit(global(name));
+            }
+        }
+
+        void define(String name) {
+            if (depth > 0) {
+                locals.add(name);
+                depths.add(depth);
+            } else {
+                function.emit(DEFINE_GLOBAL);
+                function.emit(global(name));
+            }
+        }
+
+        void endScope() {
+            depth--;
+            while (depths.get(depths.size() - 1) > depth) {
+                function.emit(POP);
+                locals.remove(locals.size() - 1);
+                depths.remove(depths.size() - 1);
+            }
+        }
+
+        void constant(Object value) {
+            function.constantList.add(value);
+            function.emit(CONSTANT);
+            function.emit(function.constantList.size() - 1);
+        }
+
+        int jump(byte instruction) {
+            function.emit(instruction);
+            function.emit(0xff);
+            function.emit(0xff);
+            return function.length - 2;
+        }
+
+        void patch(int offset) {
+            int distance = function.length - offset - 2;
+            function.code[offset] = (byte) (distance >> 8);
+            function.code[offset + 1] = (byte) distance;
+        }
+
+        void loop(int start) {
+            function.emit(LOOP);
+            int distance = function.length - start + 2;
+            function.emit(distance >> 8);
+            function.emit(distance);
+        }
+    }
+
+    private void run(Function script) {
+        Object[] stack = new Object[FRAMES_MAX * 4];
+        Function[] functions = new Function[FRAMES_MAX];
+        int[] ips = new int[FRAMES_MAX];
+        int[] bases = new int[FRAMES_MAX];
+        int frame = 0;
+
+        Function function = script;
+        byte[] code = function.code;
+        Object[] constants = function.constants;
+        int ip = 0;
+        int base = 0;
+        int top = 1;
+
+        while (true) {
+            switch (code[ip++]) {
+                case CONSTANT -> stack[top++] = constants[code[ip++] & 0xff];
+                case NIL -> stack[top++] = null;
+                case POP -> top--;
+                case GET_LOCAL -> stack[top++] = stack[base + (code[ip++] & 0xff)];
+                case SET_LOCAL -> stack[base + (code[ip++] & 0xff)] = stack[top - 1];
+                case GET_GLOBAL -> stack[top++] = globals[code[ip++] & 0xff];
+                case SET_GLOBAL -> globals[code[ip++] & 0xff] = stack[top - 1];
+                case DEFINE_GLOBAL -> globals[code[ip++] & 0xff] = stack[--top];
+                case ADD -> {
+                    Object b = stack[--top];
+                    Object a = stack[top - 1];
+                    if (a instanceof Double x && b instanceof Double y)
+                        stack[top - 1] = x + y;
+                    else if (a instanceof String x && b instanceof String y)
+                        stack[top - 1] = x + y;
+                    else
+                        throw new IllegalStateException("Operands must be two numbers or two strings.");
+                }
+                case SUBTRACT -> {
+                    double b = number(stack[--top]);
+                    stack[top - 1] = number(stack[top - 1]) - b;
+                }
+                case MULTIPLY -> {
+                    double b = number(stack[--top]);
+                    stack[top - 1] = number(stack[top - 1]) * b;
+                }
+                case DIVIDE -> {
+                    double b = number(stack[--top]);
+                    stack[top - 1] = number(stack[top - 1]) / b;
+                }
+                case LESS -> {
+                    double b = number(stack[--top]);
+                    stack[top - 1] = number(stack[top - 1]) < b;
+                }
+                case GREATER -> {
+                    double b = number(stack[--top]);
+                    stack[top - 1] = number(stack[top - 1]) > b;
+                }
+                case EQUAL -> {
+                    Object b = stack[--top];
+                    stack[top - 1] = Objects.equals(stack[top - 1], b);
+                }
+                case NOT -> stack[top - 1] = !isTruthy(stack[top - 1]);
+                case NEGATE -> stack[top - 1] = -number(stack[top - 1]);
+                case JUMP -> ip += 2 + readShort(code, ip);
+                case JUMP_IF_FALSE -> {
+                    int distance = readShort(code, ip);
+                    ip += 2;
+                    if (!isTruthy(stack[top - 1])) ip += distance;
+                }
+                case LOOP -> ip += 2 - readShort(code, ip);
+                case CALL -> {
+                    int count = code[ip++] & 0xff;
+                    if (!(stack[top - 1 - count] instanceof Function callee) || callee.arity != count)
+                        throw new IllegalStateException("Bad call.");
+                    if (frame == FRAMES_MAX - 1)
+                        throw new IllegalStateException("Stack overflow.");
+
+                    functions[frame] = function;
+                    ips[frame] = ip;
+                    bases[frame] = base;
+                    frame++;
+
+                    function = callee;
+                    code = function.code;
+                    constants = function.constants;
+                    ip = 0;
+                    base = top - count - 1;
+                }
+                case RETURN -> {
+                    Object result = stack[--top];
+                    if (frame == 0) return;
+
+                    top = base;
+                    stack[top++] = result;
+
+                    frame--;
+                    function = functions[frame];
+                    code = function.code;
+                    constants = function.constants;
+                    ip = ips[frame];
+                    base = bases[frame];
+                }
+                case PRINT -> {
+                    Object value = stack[top - 1];
+                    System.out.println(value instanceof Double number ? NumberFormatter.format(number) : Objects.toString(value, "nil"));
+                    stack[top - 1] = null;
+                }
+                case CLOCK -> stack[top++] = System.nanoTime() / 1e9;
+                default -> throw new IllegalStateException("Unknown instruction.");
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return (code[ip] & 0xff) << 8 | code[ip + 1] & 0xff;
+    }
+
+    private static double number(Object value) {
+        if (value instanceof Double number) return number;
+        throw new IllegalStateException("Operand must be a number.");
+    }
+
+    private static boolean isTruthy(Object value) {
+        return value != null && !Boolean.FALSE.equals(value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Statement> statements = new Parser(new Scanner(Files.readString(Path.of(args[0])))).parse();
+
+        StackVm vm = new StackVm();
+        Compiler compiler = vm.new Compiler("script");
+        for (Statement statement : statements) compiler.statement(statement);
+        vm.run(compiler.finish());
+    }
+}
@@ -0,0 +1,109 @@
+import { describe, it } from "node:test";
+import assert from "node:assert/strict";
+import { execSync } from "node:child_process";
+import { mkdtempSync, readFileSync, readdirSync, lstatSync } from "node:fs";
+import { tmpdir } from "node:os";
+import { join } from "node:path";
+import { fileURLToPath } from "node:url";
+
+// Runs the scripts in test/ against jcmel, the way cmel.test.mjs runs test/ at
+// the top against the C implementation, and with the same comments. Each
+// script runs once per engine, unless it names its own flags, and it can also
+// give its stdin, the output of both streams together, and its exit status.
+const EXPECT_STRING = "// expect:";
+const EXPECT_ERROR_STRING = "// expect error:";
+const EXPECT_OUTPUT_STRING = "// expect output:";
+const EXPECT_EXIT_STRING = "// expect exit:";
+const FLAGS_STRING = "// flags:";
+const STDIN_STRING = "// stdin:";
+
+const ENGINES = ["", "--compile", "--stream"];
+
+const classes = mkdtempSync(join(tmpdir(), "jcmel-"));
+
+process.on("unhandledRejection", (reason, _promise) => {
+    console.error(reason);
+    throw reason;
+});
+
+function build() {
+    const sources = readdirSync("src", { recursive: true })
+        .filter((file) => file.endsWith(".java"))
+        .map((file) => join("src", file));
+    execSync("javac -d " + classes + " " + sources.join(" "));
+}
+
+function execRun(cmd, input) {
+    try {
+        const stdout = execSync(cmd, { input, stdio: ["pipe", "pipe", "pipe"] }).toString();
+        return { stdout, stderr: "", status: 0 };
+    } catch (e) {
+        return { stdout: e.stdout.toString(), stderr: e.stderr.toString(), status: e.status };
+    }
+}
+
+function unescapeNewLines(str) {
+    return str.replaceAll('\\n', '\n');
+}
+
+function directive(str, prefix) {
+    const line = str.split("\n").find((line) => line.startsWith(prefix));
+    return line === undefined ? undefined : unescapeNewLines(line.substring(prefix.length + 1));
+}
+
+function generateAssertions(str, command, input) {
+    const { stdout, stderr, status } = execRun(command, input);
+
+    str.split("\n").forEach((line) => {
+        if (line.startsWith(EXPECT_STRING)) {
+            const expectedString = unescapeNewLines(line.substring(EXPECT_STRING.length + 1));
+            assert.equal(stdout, expectedString + "\n");
+        } else if (line.startsWith(EXPECT_ERROR_STRING)) {
+            const expectedError = unescapeNewLines(line.substring(EXPECT_ERROR_STRING.length + 1));
+            assert.notEqual(status, 0);
+            assert.equal(stderr, expectedError + "\n");
+        } else if (line.startsWith(EXPECT_OUTPUT_STRING)) {
+            const expectedOutput = unescapeNewLines(line.substring(EXPECT_OUTPUT_STRING.length + 1));
+            assert.equal(execRun(command + " 2>&1", input).stdout, expectedOutput + "\n");
+        } else if (line.startsWith(EXPECT_EXIT_STRING)) {
+            assert.equal(status, Number(line.substring(EXPECT_EXIT_STRING.length + 1)));
+        }
+    });
+}
+
+function loadFile(fileName) {
+    const fileContent = readFileSync(fileName, "utf8");
+    const flags = directive(fileContent, FLAGS_STRING);
+    const input = directive(fileContent, STDIN_STRING) ?? "";
+
+    for (const engine of flags === undefined ? ENGINES : [flags]) {
+        it((fileName + " " + engine).trim(), () => {
+            const command = ["java -cp", classes, "com.aidan.cmel.Cmel", engine, fileName].join(" ");
+            generateAssertions(fileContent, command, input);
+        });
+    }
+}
+
+function readDirectory(path) {
+    describe(path, () => {
+        for (const file of readdirSync(path)) {
+            const filePath = path + "/" + file;
+
+            if (lstatSync(filePath).isDirectory()) {
+                readDirectory(filePath);
+            } else if (lstatSync(filePath).isFile()) {
+                loadFile(filePath);
+            } else {
+                throw new Error(
+                    'Attempted to read "' +
+                    filePath +
+                    '" which is neither a directory or a file.'
+                );
+            }
+        }
+    });
+}
+
+process.chdir(fileURLToPath(new URL(".", import.meta.url)));
+build();
+readDirectory("test");
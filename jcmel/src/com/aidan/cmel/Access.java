@@ -0,0 +1,9 @@
+package com.aidan.cmel;
+
+// Where the Resolver found a variable. LOCAL and CELL are slots in the current
+// call's frame, CELL being a local that a closure has captured and so is kept
+// in a Cell. UPVALUE is one of the current closure's captured Cells, and
+// GLOBAL a slot in the global environment.
+public enum Access {
+    GLOBAL, LOCAL, CELL, UPVALUE
+}
@@ -0,0 +1,12 @@
+package com.aidan.cmel;
+
+// A variable that a closure captures, like a closed ObjUpvalue in the C VM.
+// The declaring frame keeps the Cell in the variable's slot and every closure
+// that captures it holds the same Cell, so they all share the one variable.
+public class Cell {
+    Object value;
+
+    public Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,718 @@
+package com.aidan.cmel;
+
+import java.util.List;
+
+import static com.aidan.cmel.Interpreter.checkNumberOperand;
+import static com.aidan.cmel.Interpreter.expectDouble;
+import static com.aidan.cmel.Interpreter.genericBinary;
+import static com.aidan.cmel.Interpreter.isEqual;
+import static com.aidan.cmel.Interpreter.isTruthy;
+
+// Turns a resolved AST into a tree of lambdas. Everything the Interpreter works
+// out on each visit (which operator, which slot, global or local) is worked out
+// once here and captured by the lambda, so running the tree is just calls.
+public class ClosureCompiler implements Expression.Visitor<ClosureCompiler.CompiledExpression>, Statement.Visitor<ClosureCompiler.CompiledStatement> {
+
+    public interface CompiledExpression {
+        Object evaluate(Environment environment);
+
+        // the double channel, see Interpreter.evaluateDouble
+        default double evaluateDouble(Environment environment) {
+            return expectDouble(evaluate(environment));
+        }
+    }
+
+    // An expression that works on raw doubles. Its numeric parents call
+    // evaluateDouble directly, so only the outermost result gets boxed.
+    private interface CompiledNumber extends CompiledExpression {
+        @Override
+        double evaluateDouble(Environment environment);
+
+        @Override
+        default Object evaluate(Environment environment) {
+            try {
+                return evaluateDouble(environment);
+            } catch (UnexpectedResult result) {
+                return result.value;
+            }
+        }
+    }
+
+    public interface CompiledStatement {
+        Completion execute(Environment environment);
+    }
+
+    // calls or loop iterations after which the Interpreter hands a function body
+    // or a while or for loop over to compiled code
+    static final int HOT_THRESHOLD = 1000;
+
+    private interface Definition {
+        Completion define(Environment environment, CompiledExpression value);
+    }
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+
+    public ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.getGlobals();
+    }
+
+    public CompiledStatement compile(List<Statement> statements) {
+        CompiledStatement[] compiled = new CompiledStatement[statements.size()];
+        for (int i = 0; i < compiled.length; i++)
+            compiled[i] = compile(statements.get(i));
+
+        if (compiled.length == 1) return compiled[0];
+
+        return environment -> {
+            for (CompiledStatement statement : compiled) {
+                Completion completion = statement.execute(environment);
+                if (completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    CompiledStatement compile(Statement statement) {
+        return statement.accept(this);
+    }
+
+    private CompiledExpression compile(Expression expression) {
+        return expression.accept(this);
+    }
+
+    // see Interpreter.declare
+    private Definition definition(Access access, int slot) {
+        return switch (access) {
+            case CELL -> (environment, value) -> {
+                Cell cell = new Cell(null);
+                environment.set(slot, cell);
+                cell.value = value.evaluate(environment);
+                return Completion.NORMAL;
+            };
+            case LOCAL -> (environment, value) -> {
+                environment.set(slot, value.evaluate(environment));
+                return Completion.NORMAL;
+            };
+            default -> (environment, value) -> {
+                globals.set(slot, value.evaluate(environment));
+                return Completion.NORMAL;
+            };
+        };
+    }
+
+    @Override
+    public CompiledExpression visitAssignExpression(Expression.Assign expression) {
+        CompiledExpression value = compile(expression.value);
+
+        int slot = expression.slot;
+        Token name = expression.name;
+
+        return switch (expression.access) {
+            case LOCAL -> environment -> {
+                Object result = value.evaluate(environment);
+                environment.set(slot, result);
+                return result;
+            };
+            case CELL -> environment -> {
+                Object result = value.evaluate(environment);
+                environment.cell(slot).value = result;
+                return result;
+            };
+            case UPVALUE -> environment -> {
+                Object result = value.evaluate(environment);
+                environment.upvalue(slot).value = result;
+                return result;
+            };
+            case GLOBAL -> environment -> {
+                Object result = value.evaluate(environment);
+                globals.assignGlobal(slot, name, result);
+                return result;
+            };
+        };
+    }
+
+    @Override
+    public CompiledExpression visitTernaryExpression(Expression.Ternary expression) {
+        CompiledExpression test = compile(expression.test);
+        CompiledExpression left = compile(expression.left);
+        CompiledExpression right = compile(expression.right);
+
+        return environment -> isTruthy(test.evaluate(environment))
+                ? left.evaluate(environment)
+                : right.evaluate(environment);
+    }
+
+    @Override
+    public CompiledExpression visitBinaryExpression(Expression.Binary expression) {
+        CompiledExpression left = compile(expression.left);
+        CompiledExpression right = compile(expression.right);
+        Token operator = expression.operator;
+
+        // Operands are read through the double channel. When one turns out not to
+        // be a number the operator finishes generically, after both have run.
+        // Each operator keeps a lambda of its own, so each gets its own type
+        // profile and the operation inlines; only the fallbacks are shared.
+        return switch (operator.getType()) {
+            case GREATER -> environment -> {
+                double l;
+                try {
+                    l = left.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return notNumberLeft(operator, result, right, environment);
+                }
+
+                double r;
+                try {
+                    r = right.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return notNumberRight(operator, l, result);
+                }
+
+                return l > r;
+            };
+            case GREATER_EQUAL -> environment -> {
+                double l;
+                try {
+                    l = left.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return notNumberLeft(operator, result, right, environment);
+                }
+
+                double r;
+                try {
+                    r = right.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return notNumberRight(operator, l, result);
+                }
+
+                return l >= r;
+            };
+            case LESS -> environment -> {
+                double l;
+                try {
+                    l = left.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return notNumberLeft(operator, result, right, environment);
+                }
+
+                double r;
+                try {
+                    r = right.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return notNumberRight(operator, l, result);
+                }
+
+                return l < r;
+            };
+            case LESS_EQUAL -> environment -> {
+                double l;
+                try {
+                    l = left.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return notNumberLeft(operator, result, right, environment);
+                }
+
+                double r;
+                try {
+                    r = right.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return notNumberRight(operator, l, result);
+                }
+
+                return l <= r;
+            };
+            case BANG_EQUAL -> environment -> !isEqual(left.evaluate(environment), right.evaluate(environment));
+            case EQUAL_EQUAL -> environment -> isEqual(left.evaluate(environment), right.evaluate(environment));
+            case MINUS -> (CompiledNumber) environment -> {
+                double l;
+                try {
+                    l = left.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return expectDouble(notNumberLeft(operator, result, right, environment));
+                }
+
+                double r;
+                try {
+                    r = right.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return expectDouble(notNumberRight(operator, l, result));
+                }
+
+                return l - r;
+            };
+            case SLASH -> (CompiledNumber) environment -> {
+                double l;
+                try {
+                    l = left.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return expectDouble(notNumberLeft(operator, result, right, environment));
+                }
+
+                double r;
+                try {
+                    r = right.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return expectDouble(notNumberRight(operator, l, result));
+                }
+
+                if (r == 0)
+                    throw new RuntimeError(operator, "Cannot divide by zero.");
+                return l / r;
+            };
+            case STAR -> (CompiledNumber) environment -> {
+                double l;
+                try {
+                    l = left.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return expectDouble(notNumberLeft(operator, result, right, environment));
+                }
+
+                double r;
+                try {
+                    r = right.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return expectDouble(notNumberRight(operator, l, result));
+                }
+
+                return l * r;
+            };
+            case PLUS -> addition(operator, left, right);
+            default -> environment -> genericBinary(operator, left.evaluate(environment), right.evaluate(environment));
+        };
+    }
+
+    // the rest of a binary operator whose left operand wasn't a number
+    private static Object notNumberLeft(Token operator, UnexpectedResult result, CompiledExpression right, Environment environment) {
+        return genericBinary(operator, result.value, right.evaluate(environment));
+    }
+
+    // the rest of a binary operator whose right operand wasn't a number
+    private static Object notNumberRight(Token operator, double left, UnexpectedResult result) {
+        return genericBinary(operator, left, result.value);
+    }
+
+    // + also concatenates strings, so it only works on doubles when a numeric
+    // parent asks for one; evaluated for its own sake it stays boxed, which keeps
+    // string concatenation off the UnexpectedResult path.
+    private static CompiledExpression addition(Token operator, CompiledExpression left, CompiledExpression right) {
+        return new CompiledExpression() {
+            @Override
+            public Object evaluate(Environment environment) {
+                Object l = left.evaluate(environment);
+                Object r = right.evaluate(environment);
+                if (l instanceof Double a && r instanceof Double b) return a + b;
+                return genericBinary(operator, l, r);
+            }
+
+            @Override
+            public double evaluateDouble(Environment environment) {
+                double l;
+                try {
+                    l = left.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return expectDouble(notNumberLeft(operator, result, right, environment));
+                }
+
+                double r;
+                try {
+                    r = right.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    return expectDouble(notNumberRight(operator, l, result));
+                }
+
+                return l + r;
+            }
+        };
+    }
+
+    @Override
+    public CompiledExpression visitLogicalExpression(Expression.Logical expression) {
+        CompiledExpression left = compile(expression.left);
+        CompiledExpression right = compile(expression.right);
+
+        if (expression.operator.getType() == TokenType.OR) {
+            return environment -> {
+                Object value = left.evaluate(environment);
+                return isTruthy(value) ? value : right.evaluate(environment);
+            };
+        }
+
+        return environment -> {
+            Object value = left.evaluate(environment);
+            return !isTruthy(value) ? value : right.evaluate(environment);
+        };
+    }
+
+    @Override
+    public CompiledExpression visitGroupingExpression(Expression.Grouping expression) {
+        return compile(expression.expression);
+    }
+
+    @Override
+    public CompiledExpression visitLiteralExpression(Expression.Literal expression) {
+        Object value = expression.value;
+        if (value instanceof Double number) {
+            double raw = number;
+            return (CompiledNumber) environment -> raw;
+        }
+
+        return environment -> value;
+    }
+
+    @Override
+    public CompiledExpression visitUnaryExpression(Expression.Unary expression) {
+        CompiledExpression right = compile(expression.right);
+        Token operator = expression.operator;
+
+        if (operator.getType() == TokenType.MINUS) {
+            return (CompiledNumber) environment -> {
+                try {
+                    return -right.evaluateDouble(environment);
+                } catch (UnexpectedResult result) {
+                    checkNumberOperand(operator, result.value);
+                    throw result;
+                }
+            };
+        }
+
+        return environment -> !isTruthy(right.evaluate(environment));
+    }
+
+    @Override
+    public CompiledExpression visitCallExpression(Expression.Call expression) {
+        CompiledExpression[] arguments = new CompiledExpression[expression.arguments.size()];
+        for (int i = 0; i < arguments.length; i++)
+            arguments[i] = compile(expression.arguments.get(i));
+        Token paren = expression.paren;
+
+        if (expression.callee instanceof Expression.Get get)
+            return invoke(get, arguments, paren);
+
+        CompiledExpression callee = compile(expression.callee);
+
+        return environment -> {
+            Object function = callee.evaluate(environment);
+            return call(paren, function, arguments, environment);
+        };
+    }
+
+    // see Interpreter.visitInvoke
+    private CompiledExpression invoke(Expression.Get get, CompiledExpression[] arguments, Token paren) {
+        CompiledExpression object = compile(get.object);
+        Token name = get.name;
+        InlineCache cache = get.cache;
+
+        return environment -> {
+            Object receiver = object.evaluate(environment);
+
+            if (receiver instanceof CmelInstance instance) {
+                CmelFunction method = cache.findMethod(instance, name);
+                if (method != null)
+                    return invoke(paren, instance, method, arguments, environment);
+            }
+
+            Object function = Interpreter.getProperty(receiver, name, cache);
+            return call(paren, function, arguments, environment);
+        };
+    }
+
+    // see Interpreter.callWith
+    private Object call(Token paren, Object function, CompiledExpression[] arguments, Environment environment) {
+        return switch (arguments.length) {
+            case 0 -> interpreter.call0(paren, function);
+            case 1 -> interpreter.call1(paren, function, arguments[0].evaluate(environment));
+            case 2 -> interpreter.call2(paren, function, arguments[0].evaluate(environment), arguments[1].evaluate(environment));
+            case 3 -> interpreter.call3(paren, function, arguments[0].evaluate(environment), arguments[1].evaluate(environment), arguments[2].evaluate(environment));
+            default -> interpreter.call(paren, function, evaluate(arguments, environment));
+        };
+    }
+
+    private Object invoke(Token paren, CmelInstance instance, CmelFunction method, CompiledExpression[] arguments, Environment environment) {
+        return switch (arguments.length) {
+            case 0 -> interpreter.invoke0(paren, instance, method);
+            case 1 -> interpreter.invoke1(paren, instance, method, arguments[0].evaluate(environment));
+            case 2 -> interpreter.invoke2(paren, instance, method, arguments[0].evaluate(environment), arguments[1].evaluate(environment));
+            case 3 -> interpreter.invoke3(paren, instance, method, arguments[0].evaluate(environment), arguments[1].evaluate(environment), arguments[2].evaluate(environment));
+            default -> interpreter.invoke(paren, instance, method, evaluate(arguments, environment));
+        };
+    }
+
+    private static Object[] evaluate(CompiledExpression[] arguments, Environment environment) {
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < values.length; i++)
+            values[i] = arguments[i].evaluate(environment);
+        return values;
+    }
+
+    @Override
+    public CompiledExpression visitGetExpression(Expression.Get expression) {
+        CompiledExpression object = compile(expression.object);
+        Token name = expression.name;
+        InlineCache cache = expression.cache;
+
+        return environment -> Interpreter.getProperty(object.evaluate(environment), name, cache);
+    }
+
+    @Override
+    public CompiledExpression visitSetExpression(Expression.Set expression) {
+        CompiledExpression object = compile(expression.object);
+        CompiledExpression value = compile(expression.value);
+        Token name = expression.name;
+        InlineCache cache = expression.cache;
+
+        return environment -> {
+            Object instance = object.evaluate(environment);
+
+            if (!(instance instanceof CmelInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.evaluate(environment);
+            ((CmelInstance) instance).set(name, result, cache);
+            return result;
+        };
+    }
+
+    @Override
+    public CompiledExpression visitSuperExpression(Expression.Super expression) {
+        CompiledExpression superclassVariable = variable(expression.keyword, expression.access, expression.slot);
+        CompiledExpression thisVariable = variable(expression.keyword, expression.thisAccess, expression.thisSlot);
+        Token method = expression.method;
+
+        return environment -> {
+            CmelClass superclass = (CmelClass) superclassVariable.evaluate(environment);
+            CmelInstance object = (CmelInstance) thisVariable.evaluate(environment);
+
+            CmelFunction function = superclass.findMethod(method.getSymbol());
+
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property '" + method.getLexeme() + "'.");
+            }
+
+            return function.bind(object);
+        };
+    }
+
+    @Override
+    public CompiledExpression visitThisExpression(Expression.This expression) {
+        return variable(expression.keyword, expression.access, expression.slot);
+    }
+
+    @Override
+    public CompiledExpression visitVariableExpression(Expression.Variable expression) {
+        return variable(expression.name, expression.access, expression.slot);
+    }
+
+    private CompiledExpression variable(Token name, Access access, int slot) {
+        return switch (access) {
+            case LOCAL -> environment -> environment.get(slot);
+            case CELL -> environment -> environment.cell(slot).value;
+            case UPVALUE -> environment -> environment.upvalue(slot).value;
+            case GLOBAL -> environment -> globals.getGlobal(slot, name);
+        };
+    }
+
+    @Override
+    public CompiledExpression visitAnonFunctionExpression(Expression.AnonFunction expression) {
+        CompiledStatement body = compile(expression.body);
+        Upvalue[] upvalues = expression.upvalues;
+        return environment -> new CmelAnonFunction(expression, environment.capture(upvalues), body);
+    }
+
+    @Override
+    public CompiledStatement visitBlockStatement(Statement.Block statement) {
+        return compile(statement.statements);
+    }
+
+    @Override
+    public CompiledStatement visitExpressionStatementStatement(Statement.ExpressionStatement statement) {
+        CompiledExpression expression = compile(statement.expression);
+        return environment -> {
+            expression.evaluate(environment);
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public CompiledStatement visitIfStatementStatement(Statement.IfStatement statement) {
+        CompiledExpression condition = compile(statement.condition);
+        CompiledStatement thenBranch = compile(statement.thenBranch);
+
+        if (statement.elseBranch == null) {
+            return environment -> {
+                if (isTruthy(condition.evaluate(environment)))
+                    return thenBranch.execute(environment);
+                return Completion.NORMAL;
+            };
+        }
+
+        CompiledStatement elseBranch = compile(statement.elseBranch);
+        return environment -> {
+            if (isTruthy(condition.evaluate(environment)))
+                return thenBranch.execute(environment);
+            else
+                return elseBranch.execute(environment);
+        };
+    }
+
+    @Override
+    public CompiledStatement visitVarStatement(Statement.Var statement) {
+        Definition definition = definition(statement.access, statement.slot);
+
+        CompiledExpression initializer = statement.initializer != null
+                ? compile(statement.initializer)
+                : environment -> null;
+        return environment -> definition.define(environment, initializer);
+    }
+
+    @Override
+    public CompiledStatement visitWhileStatement(Statement.While statement) {
+        CompiledExpression condition = compile(statement.condition);
+        CompiledStatement body = compile(statement.body);
+
+        return environment -> {
+            while (isTruthy(condition.evaluate(environment))) {
+                Completion completion = body.execute(environment);
+                if (completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public CompiledStatement visitForStatement(Statement.For statement) {
+        CompiledStatement loop = compileLoop(statement);
+        if (statement.initializer == null)
+            return loop;
+
+        CompiledStatement initializer = compile(statement.initializer);
+        return environment -> {
+            initializer.execute(environment);
+            return loop.execute(environment);
+        };
+    }
+
+    // the loop without its initializer, which is also where the Interpreter
+    // picks up part way through a hot loop
+    CompiledStatement compileLoop(Statement.For statement) {
+        CompiledExpression condition = compile(statement.condition);
+        CompiledStatement body = compile(statement.body);
+        CompiledExpression increment = statement.increment != null
+                ? compile(statement.increment)
+                : environment -> null;
+
+        return environment -> {
+            while (isTruthy(condition.evaluate(environment))) {
+                Completion completion = body.execute(environment);
+                if (completion != Completion.NORMAL) return completion;
+
+                increment.evaluate(environment);
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public CompiledStatement visitFunctionStatement(Statement.Function statement) {
+        Definition definition = definition(statement.access, statement.slot);
+        CompiledStatement body = compile(statement.body);
+        Upvalue[] upvalues = statement.upvalues;
+
+        return environment -> definition.define(environment,
+                closure -> new CmelFunction(statement, closure.capture(upvalues), false, body));
+    }
+
+    @Override
+    public CompiledStatement visitReturnStatement(Statement.Return statement) {
+        if (statement.tailCall)
+            return tailCall((Expression.Call) statement.value);
+
+        if (statement.value == null) {
+            return environment -> {
+                interpreter.setReturnValue(null);
+                return Completion.RETURN;
+            };
+        }
+
+        CompiledExpression value = compile(statement.value);
+        return environment -> {
+            interpreter.setReturnValue(value.evaluate(environment));
+            return Completion.RETURN;
+        };
+    }
+
+    // see Interpreter.visitTailCall
+    private CompiledStatement tailCall(Expression.Call call) {
+        CompiledExpression[] arguments = new CompiledExpression[call.arguments.size()];
+        for (int i = 0; i < arguments.length; i++)
+            arguments[i] = compile(call.arguments.get(i));
+        Token paren = call.paren;
+
+        if (call.callee instanceof Expression.Get get) {
+            CompiledExpression object = compile(get.object);
+            Token name = get.name;
+            InlineCache cache = get.cache;
+
+            return environment -> {
+                Object receiver = object.evaluate(environment);
+
+                if (receiver instanceof CmelInstance instance) {
+                    CmelFunction method = cache.findMethod(instance, name);
+                    if (method != null)
+                        return interpreter.tailInvoke(paren, instance, method, evaluate(arguments, environment));
+                }
+
+                Object function = Interpreter.getProperty(receiver, name, cache);
+                return interpreter.tailCall(paren, function, evaluate(arguments, environment));
+            };
+        }
+
+        CompiledExpression callee = compile(call.callee);
+
+        return environment -> {
+            Object function = callee.evaluate(environment);
+            return interpreter.tailCall(paren, function, evaluate(arguments, environment));
+        };
+    }
+
+    @Override
+    public CompiledStatement visitClassStatement(Statement.Class statement) {
+        Definition definition = definition(statement.access, statement.slot);
+        String name = statement.name.getLexeme();
+        CompiledExpression superclassExpression = statement.superclass == null ? null : compile(statement.superclass);
+
+        List<Statement.Function> declarations = statement.methods;
+        CompiledStatement[] bodies = new CompiledStatement[declarations.size()];
+        for (int i = 0; i < bodies.length; i++)
+            bodies[i] = compile(declarations.get(i).body);
+        int superSlot = statement.superSlot;
+
+        // the methods capture the class's own Cell, so they're made by its definition
+        return environment -> {
+            Object superclass = null;
+            if (superclassExpression != null) {
+                superclass = superclassExpression.evaluate(environment);
+                if (!(superclass instanceof CmelClass)) {
+                    throw new RuntimeError(statement.superclass.name, "Superclass must be a class.");
+                }
+            }
+
+            CmelClass klass = (CmelClass) superclass;
+            return definition.define(environment, closure -> {
+                if (klass != null)
+                    closure.set(superSlot, new Cell(klass));
+
+                Table<CmelFunction> methods = new Table<>();
+                for (int i = 0; i < bodies.length; i++) {
+                    Statement.Function method = declarations.get(i);
+                    CmelFunction function = new CmelFunction(method, closure.capture(method.upvalues), true, bodies[i]);
+                    methods.put(method.name.getSymbol(), function);
+                }
+
+                return new CmelClass(name, klass, methods);
+            });
+        };
+    }
+}
@@ -1,12 +1,17 @@
 package com.aidan.cmel;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.aidan.cmel.TokenType.EOF;
 import static java.lang.Thread.sleep;
@@ -14,61 +19,158 @@ import static java.lang.Thread.sleep;
 public class Cmel {
     private static boolean hadError;
     private static boolean hadRuntimeError;
-
-    private static Interpreter interpreter = new Interpreter();
+    private static boolean compile;
+    private static boolean stream;
+
+    private static final String MAX_DEPTH = "--max-depth=";
+    private static final String BUFFER_SIZE = "--buffer-size=";
+    private static final String FLUSH_MS = "--flush-ms=";
+    // Java stack reserved per Cmel call, enough for typical frames to reach the
+    // call depth limit before a StackOverflowError. Deeper frames can run out
+    // first, which Interpreter.interpret reports as a stack overflow too.
+    private static final long STACK_PER_CALL = 8 * 1024;
+    // the deepest --max-depth takes, whose stack (800MB) is about as much as a
+    // thread can be given before creating it fails for lack of memory
+    private static final int MAX_MAX_DEPTH = 100_000;
+
+    private static Interpreter interpreter;
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        if (args.length > 1) {
-            System.out.println("Usage: cmel [script]");
+        List<String> arguments = new ArrayList<>(List.of(args));
+        compile = arguments.remove("--compile");
+        stream = arguments.remove("--stream");
+        boolean lineBuffered = arguments.remove("--line-buffered") || Output.isTerminal();
+
+        int maxCallDepth = option(arguments, MAX_DEPTH, Interpreter.DEFAULT_MAX_CALL_DEPTH);
+        int bufferSize = option(arguments, BUFFER_SIZE, Output.DEFAULT_BUFFER_SIZE);
+        int flushMillis = option(arguments, FLUSH_MS, Output.DEFAULT_FLUSH_MILLIS);
+
+        if (arguments.size() > 1 || maxCallDepth <= 0 || maxCallDepth > MAX_MAX_DEPTH || bufferSize <= 0 || flushMillis < 0) {
+            System.out.println("Usage: cmel [--compile] [--stream] [--max-depth=calls] [--buffer-size=bytes] [--flush-ms=millis] [--line-buffered] [script]");
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
-        } else {
-            runPrompt();
         }
+
+        interpreter = new Interpreter(maxCallDepth, Output.stdout(bufferSize, flushMillis, lineBuffered), LineReader.stdin());
+
+        // the main thread's stack is too small for deep recursion, so run on a
+        // thread whose stack is sized for typical frames at the call depth limit
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                if (arguments.size() == 1)
+                    runFile(arguments.get(0));
+                else
+                    runPrompt();
+            } catch (Throwable error) {
+                // rethrown on the main thread, so the process exits with an error
+                failure.set(error);
+            } finally {
+                interpreter.getOutput().flush();
+            }
+        }, "cmel", maxCallDepth * STACK_PER_CALL);
+
+        thread.start();
+        thread.join();
+
+        if (failure.get() instanceof IOException error) throw error;
+        if (failure.get() instanceof InterruptedException error) throw error;
+        if (failure.get() instanceof RuntimeException error) throw error;
+        if (failure.get() instanceof Error error) throw error;
+    }
+
+    // the value of a --name=value option, which is taken out of the arguments,
+    // or -1 if it isn't a number
+    private static int option(List<String> arguments, String name, int defaultValue) {
+        int value = defaultValue;
+        for (String argument : List.copyOf(arguments)) {
+            if (!argument.startsWith(name)) continue;
+
+            arguments.remove(argument);
+            try {
+                value = Integer.parseInt(argument.substring(name.length()));
+            } catch (NumberFormatException error) {
+                value = -1;
+            }
+        }
+        return value;
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        CharBuffer source = read(Paths.get(path));
+        Parser parser = new Parser(new Scanner(source.array(), source.limit()));
+        if (stream)
+            runDeclarations(parser);
+        else
+            run(parser);
+        interpreter.getOutput().flush();
 
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
-    private static void runPrompt() throws IOException, InterruptedException {
-        InputStreamReader input = new InputStreamReader(System.in);
-        BufferedReader reader = new BufferedReader(input);
+    // Decoded straight out of a mapping of the file, so its bytes are never
+    // copied onto the heap and the Scanner gets the only copy of its characters.
+    // A pipe or a device has no size to map, so that's read in full instead.
+    private static CharBuffer read(Path path) throws IOException {
+        if (!Files.isRegularFile(path))
+            return Charset.defaultCharset().decode(ByteBuffer.wrap(Files.readAllBytes(path)));
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return Charset.defaultCharset().decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
 
+    private static void runPrompt() throws InterruptedException {
         while(true) {
             sleep(50);
-            System.out.print("> ");
-            String line = reader.readLine();
+            interpreter.getOutput().print("> ");
+            interpreter.getOutput().flush();
+            // the same reader as input(), so neither loses lines the other has read ahead
+            String line = interpreter.getInput().readLine();
+            if (line == null) return;
             if (line.equals("")) continue;
             if (line.equals(".quit")) return;
 
             if (!line.endsWith(";"))
                 line = line + ";";
 
-            run(line);
+            run(new Parser(new Scanner(line)));
             hadError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
+    private static void run(Parser parser) {
         List<Statement> statements = parser.parse();
 
         if (hadError) return;
 
+        execute(statements);
+    }
+
+    // Each top-level declaration is resolved and run before the next one is
+    // parsed, so output starts straight away and only one declaration's tokens
+    // and tree are held at a time. After a syntax error nothing more runs, but
+    // the rest is still parsed so that its errors are reported too.
+    private static void runDeclarations(Parser parser) {
+        while (!parser.isAtEnd()) {
+            Statement statement = parser.parseDeclaration();
+            if (!hadError) execute(List.of(statement));
+            if (hadRuntimeError) return;
+        }
+    }
+
+    private static void execute(List<Statement> statements) {
+        statements = new Optimizer().optimize(statements);
+
         Resolver resolver = new Resolver(interpreter);
         resolver.resolve(statements);
 
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        if (compile)
+            interpreter.interpret(new ClosureCompiler(interpreter).compile(statements));
+        else
+            interpreter.interpret(statements);
     }
 
     public static void error(int line, String message) {
@@ -83,11 +185,15 @@ public class Cmel {
     }
 
     private static void report(int line, String where, String message) {
+        // with --stream, earlier statements may have printed already
+        interpreter.getOutput().flush();
         System.err.println("[line " + line + "] Error" + where + ": " + message);
         hadError = true;
     }
 
     public static void runtimeError(RuntimeError error) {
+        // so the error comes after everything printed before it
+        interpreter.getOutput().flush();
         System.err.println("[line " + error.getToken().getLine() + "] " + error.getMessage());
         hadRuntimeError = true;
     }
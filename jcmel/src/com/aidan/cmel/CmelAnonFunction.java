@@ -1,29 +1,82 @@
 package com.aidan.cmel;
 
-import java.util.List;
-
 public class CmelAnonFunction implements CmelCallable {
     private final Expression.AnonFunction declaration;
-    private final Environment closure;
+    private final Cell[] upvalues;
+    private final ClosureCompiler.CompiledStatement body;
+
+    public CmelAnonFunction(Expression.AnonFunction declaration, Cell[] upvalues) {
+        this(declaration, upvalues, null);
+    }
 
-    public CmelAnonFunction(Expression.AnonFunction declaration, Environment closure) {
+    public CmelAnonFunction(Expression.AnonFunction declaration, Cell[] upvalues, ClosureCompiler.CompiledStatement body) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
+        this.body = body;
+    }
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return interpreter.finishCall(this, null, execute(interpreter, arguments));
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return interpreter.finishCall(this, null, run(interpreter, enter(interpreter)));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Environment frame = enter(interpreter);
+        frame.set(0, a);
+        return interpreter.finishCall(this, null, run(interpreter, frame));
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Environment frame = enter(interpreter);
+        frame.set(0, a);
+        frame.set(1, b);
+        return interpreter.finishCall(this, null, run(interpreter, frame));
     }
+
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.parameters.size(); i++) {
-            environment.define(declaration.parameters.get(i).getLexeme(), arguments.get(i));
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment frame = enter(interpreter);
+        frame.set(0, a);
+        frame.set(1, b);
+        frame.set(2, c);
+        return interpreter.finishCall(this, null, run(interpreter, frame));
+    }
+
+    // see CmelFunction.execute
+    Completion execute(Interpreter interpreter, Object[] arguments) {
+        Environment frame = enter(interpreter);
+        for (int i = 0; i < arguments.length; i++) {
+            frame.set(i, arguments[i]);
         }
 
+        return run(interpreter, frame);
+    }
+
+    private Environment enter(Interpreter interpreter) {
+        return interpreter.enterFrame(declaration.frameSize, upvalues);
+    }
+
+    private Completion run(Interpreter interpreter, Environment frame) {
+        for (int cell : declaration.cells)
+            frame.set(cell, new Cell(frame.get(cell)));
+
+        ClosureCompiler.CompiledStatement compiled = body != null ? body : declaration.compiled;
+        if (compiled == null && ++declaration.calls == ClosureCompiler.HOT_THRESHOLD)
+            compiled = declaration.compiled = interpreter.compileFunction(declaration.body);
+
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.getValue();
+            return compiled != null
+                    ? compiled.execute(frame)
+                    : interpreter.executeBlock(declaration.body, frame);
+        } finally {
+            frame.exit(declaration.frameSize);
         }
-
-        return null;
     }
 
     @Override
@@ -1,8 +1,30 @@
 package com.aidan.cmel;
 
-import java.util.List;
-
+// Calls with up to three arguments come in through call0 to call3, with the
+// arguments passed along as they are, and only longer calls (and tail calls)
+// put their arguments in an array. A callable that doesn't override callN
+// gets its arguments as an array anyway. The Interpreter checks the number of
+// arguments against arity() before any of these are called.
 public interface CmelCallable {
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object[] NO_ARGUMENTS = new Object[0];
+
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, NO_ARGUMENTS);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[] {a});
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[] {a, b});
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, new Object[] {a, b, c});
+    }
+
     int arity();
 }
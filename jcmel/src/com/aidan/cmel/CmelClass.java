@@ -1,45 +1,77 @@
 package com.aidan.cmel;
 
-import java.util.List;
-import java.util.Map;
-
 public class CmelClass implements CmelCallable {
     final String name;
     final CmelClass superclass;
-    final Map<String, CmelFunction> methods;
+    final Table<CmelFunction> methods;
+    private final CmelFunction initializer;
+
+    // root of the shape tree for this class's instances
+    final Shape shape = new Shape(this);
+    int fieldCapacity = 0;
 
-    public CmelClass(String name, CmelClass superclass, Map<String, CmelFunction> methods) {
+    public CmelClass(String name, CmelClass superclass, Table<CmelFunction> methods) {
         this.name = name;
         this.superclass = superclass;
-        this.methods = methods;
-    }
 
-    public CmelFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
+        // Inherited methods are copied down like OP_INHERIT does in the C VM, so
+        // finding a method is a single probe however deep the hierarchy goes.
+        this.methods = new Table<>();
+        if (superclass != null)
+            this.methods.putAll(superclass.methods);
+        this.methods.putAll(methods);
 
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
+        initializer = this.methods.get(Symbol.INIT);
+    }
 
-        return null;
+    public CmelFunction findMethod(Symbol name) {
+        return methods.get(name);
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
         CmelInstance instance = new CmelInstance(this);
-        CmelFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
 
         return instance;
     }
 
+    @Override
+    public Object call0(Interpreter interpreter) {
+        CmelInstance instance = new CmelInstance(this);
+        if (initializer != null)
+            initializer.invoke0(interpreter, instance);
+        return instance;
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        CmelInstance instance = new CmelInstance(this);
+        if (initializer != null)
+            initializer.invoke1(interpreter, instance, a);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        CmelInstance instance = new CmelInstance(this);
+        if (initializer != null)
+            initializer.invoke2(interpreter, instance, a, b);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        CmelInstance instance = new CmelInstance(this);
+        if (initializer != null)
+            initializer.invoke3(interpreter, instance, a, b, c);
+        return instance;
+    }
+
     @Override
     public int arity() {
-        CmelFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
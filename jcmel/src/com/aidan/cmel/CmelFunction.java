@@ -1,40 +1,137 @@
 package com.aidan.cmel;
 
-import java.util.List;
-
 public class CmelFunction implements CmelCallable {
     private final Statement.Function declaration;
-    private final Environment closure;
+    private final Cell[] upvalues;
+    private final boolean isMethod;
     private final boolean isInitializer;
+    // the receiver, if any, comes before the parameters
+    private final int firstParameter;
+    private final ClosureCompiler.CompiledStatement body;
+
+    // Methods keep 'this' in slot 0 of their own frame, like the receiver slot in
+    // the C VM's call frames. A bound method just remembers its receiver.
+    private final CmelInstance receiver;
+
+    public CmelFunction(Statement.Function declaration, Cell[] upvalues, boolean isMethod) {
+        this(declaration, upvalues, isMethod, null);
+    }
+
+    public CmelFunction(Statement.Function declaration, Cell[] upvalues, boolean isMethod, ClosureCompiler.CompiledStatement body) {
+        this(declaration, upvalues, isMethod, body, null);
+    }
 
-    public CmelFunction(Statement.Function declaration, Environment closure, boolean isInitializer) {
+    private CmelFunction(Statement.Function declaration, Cell[] upvalues, boolean isMethod, ClosureCompiler.CompiledStatement body, CmelInstance receiver) {
         this.declaration = declaration;
-        this.closure = closure;
-        this.isInitializer = isInitializer;
+        this.upvalues = upvalues;
+        this.isMethod = isMethod;
+        this.isInitializer = isMethod && declaration.name.getSymbol() == Symbol.INIT;
+        this.firstParameter = isMethod ? 1 : 0;
+        this.body = body;
+        this.receiver = receiver;
     }
+
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.parameters.size(); i++) {
-            environment.define(declaration.parameters.get(i).getLexeme(), arguments.get(i));
-        }
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return invoke(interpreter, receiver, arguments);
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke0(interpreter, receiver);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        return invoke1(interpreter, receiver, a);
+    }
 
-            return returnValue.getValue();
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        return invoke2(interpreter, receiver, a, b);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return invoke3(interpreter, receiver, a, b, c);
+    }
+
+    public Object invoke(Interpreter interpreter, CmelInstance receiver, Object[] arguments) {
+        return interpreter.finishCall(this, receiver, execute(interpreter, receiver, arguments));
+    }
+
+    // invoke for one to three arguments, which go straight into their slots
+    public Object invoke0(Interpreter interpreter, CmelInstance receiver) {
+        return interpreter.finishCall(this, receiver, run(interpreter, enter(interpreter, receiver)));
+    }
+
+    public Object invoke1(Interpreter interpreter, CmelInstance receiver, Object a) {
+        Environment frame = enter(interpreter, receiver);
+        frame.set(firstParameter, a);
+        return interpreter.finishCall(this, receiver, run(interpreter, frame));
+    }
+
+    public Object invoke2(Interpreter interpreter, CmelInstance receiver, Object a, Object b) {
+        Environment frame = enter(interpreter, receiver);
+        frame.set(firstParameter, a);
+        frame.set(firstParameter + 1, b);
+        return interpreter.finishCall(this, receiver, run(interpreter, frame));
+    }
+
+    public Object invoke3(Interpreter interpreter, CmelInstance receiver, Object a, Object b, Object c) {
+        Environment frame = enter(interpreter, receiver);
+        frame.set(firstParameter, a);
+        frame.set(firstParameter + 1, b);
+        frame.set(firstParameter + 2, c);
+        return interpreter.finishCall(this, receiver, run(interpreter, frame));
+    }
+
+    // Runs the body in the frame for the current call depth. A returned value or
+    // a pending tail call is left with the interpreter for finishCall to pick up.
+    Completion execute(Interpreter interpreter, CmelInstance receiver, Object[] arguments) {
+        Environment frame = enter(interpreter, receiver);
+        for (int i = 0; i < arguments.length; i++) {
+            frame.set(firstParameter + i, arguments[i]);
         }
 
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+        return run(interpreter, frame);
+    }
+
+    private Environment enter(Interpreter interpreter, CmelInstance receiver) {
+        Environment frame = interpreter.enterFrame(declaration.frameSize, upvalues);
+        if (isMethod)
+            frame.set(0, receiver);
+        return frame;
+    }
+
+    private Completion run(Interpreter interpreter, Environment frame) {
+        // parameters that a closure captures
+        for (int cell : declaration.cells)
+            frame.set(cell, new Cell(frame.get(cell)));
+
+        ClosureCompiler.CompiledStatement compiled = body != null ? body : declaration.compiled;
+        if (compiled == null && ++declaration.calls == ClosureCompiler.HOT_THRESHOLD)
+            compiled = declaration.compiled = interpreter.compileFunction(declaration.body);
+
+        try {
+            return compiled != null
+                    ? compiled.execute(frame)
+                    : interpreter.executeBlock(declaration.body, frame);
+        } finally {
+            frame.exit(declaration.frameSize);
+        }
     }
 
     public CmelFunction bind(CmelInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new CmelFunction(declaration, environment, isInitializer);
+        return new CmelFunction(declaration, upvalues, isMethod, body, instance);
+    }
+
+    boolean isInitializer() {
+        return isInitializer;
+    }
+
+    CmelInstance getReceiver() {
+        return receiver;
     }
 
     @Override
@@ -1,29 +1,44 @@
 package com.aidan.cmel;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class CmelInstance {
-    private CmelClass klass;
+    private final CmelClass klass;
 
-    private final Map<String, Object> fields = new HashMap<>();
+    // the shape says which slot of values holds which field
+    Shape shape;
+    Object[] values;
 
     public CmelInstance(CmelClass klass) {
         this.klass = klass;
+        this.shape = klass.shape;
+        this.values = new Object[klass.fieldCapacity];
     }
 
-    public Object get(Token name) {
-        if (fields.containsKey(name.getLexeme()))
-            return fields.get(name.getLexeme());
+    public Object get(Token name, InlineCache cache) {
+        return cache.get(this, name);
+    }
+
+    public void set(Token name, Object value, InlineCache cache) {
+        cache.set(this, name, value);
+    }
 
-        CmelFunction method = klass.findMethod(name.getLexeme());
+    Object read(int slot, CmelFunction method, Token name) {
+        if (slot >= 0) return values[slot];
         if (method != null) return method.bind(this);
 
         throw new RuntimeError(name, "Undefined property '" + name.getLexeme() + "'.");
     }
 
-    public void set(Token name, Object value) {
-        fields.put(name.getLexeme(), value);
+    void write(int slot, Shape shape, Object value) {
+        if (slot >= values.length) {
+            values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+            // size the next instance of this class for every field seen so far
+            klass.fieldCapacity = Math.max(klass.fieldCapacity, slot + 1);
+        }
+
+        this.shape = shape;
+        values[slot] = value;
     }
 
     public String toString() {
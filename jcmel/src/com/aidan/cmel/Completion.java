@@ -0,0 +1,9 @@
+package com.aidan.cmel;
+
+// How a statement finished. Anything other than NORMAL unwinds the enclosing
+// statements until something handles it, e.g. a function call for RETURN,
+// whose value is left in the Interpreter, or for TAIL_CALL, whose callee and
+// arguments are.
+public enum Completion {
+    NORMAL, RETURN, TAIL_CALL
+}
@@ -1,66 +1,100 @@
 package com.aidan.cmel;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class Environment {
-    private final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // Every call gets a frame of slots, numbered by the Resolver, which holds all
+    // of the function's locals however deeply their blocks nest. A local that a
+    // closure captures sits in its slot as a Cell, and the closure's captures are
+    // its upvalues. The global environment is slots too, one per name, handed out
+    // by slot(Symbol) the first time the Resolver meets the name. Until the
+    // global is defined its slot holds UNDEFINED.
+    private final Table<Integer> names;
+    private Object[] slots;
+    private Cell[] upvalues;
+
+    private static final Object UNDEFINED = new Object();
 
     public Environment() {
-        enclosing = null;
+        names = new Table<>();
+        slots = new Object[16];
     }
 
-    public Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    public Environment(int size) {
+        names = null;
+        slots = new Object[size];
     }
 
-    public void define(String name, Object value) {
-        values.put(name, value);
+    // frames are reused from call to call, see Interpreter.enterFrame
+    void enter(int size, Cell[] upvalues) {
+        if (slots.length < size)
+            slots = new Object[size];
+        this.upvalues = upvalues;
     }
 
-    public Object get(Token name) {
-        if (values.containsKey(name.getLexeme()))
-            return values.get(name.getLexeme());
+    void exit(int size) {
+        Arrays.fill(slots, 0, size, null);
+        upvalues = null;
+    }
 
-        if (enclosing != null)
-            return enclosing.get(name);
+    int slot(Symbol name) {
+        Integer slot = names.get(name);
+        if (slot != null) return slot;
 
-        throw new RuntimeError(name, "Undefined variable '" + name.getLexeme() + "'.");
+        slot = names.size();
+        names.put(name, slot);
+        if (slot == slots.length)
+            slots = Arrays.copyOf(slots, slots.length * 2);
+        slots[slot] = UNDEFINED;
+        return slot;
     }
 
-    public Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    public void define(Symbol name, Object value) {
+        slots[slot(name)] = value;
     }
 
-    private Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing;
-        }
+    public Object getGlobal(int slot, Token name) {
+        Object value = slots[slot];
+        if (value == UNDEFINED)
+            throw new RuntimeError(name, "Undefined variable '" + name.getLexeme() + "'.");
 
-        return environment;
+        return value;
     }
 
-    public void assign(Token name, Object value) {
-        if (values.containsKey(name.getLexeme())) {
-            values.put(name.getLexeme(), value);
-            return;
-        }
+    public void assignGlobal(int slot, Token name, Object value) {
+        if (slots[slot] == UNDEFINED)
+            throw new RuntimeError(name, "Undefined variable '" + name.getLexeme() + "'.");
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
+        slots[slot] = value;
+    }
+
+    public Object get(int slot) {
+        return slots[slot];
+    }
+
+    public void set(int slot, Object value) {
+        slots[slot] = value;
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.getLexeme() + "'.");
+    public Cell cell(int slot) {
+        return (Cell) slots[slot];
     }
 
-    public void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.getLexeme(), value);
+    public Cell upvalue(int index) {
+        return upvalues[index];
     }
 
-    public Environment getEnclosing() {
-        return enclosing;
+    private static final Cell[] NO_UPVALUES = new Cell[0];
+
+    // the Cells a closure made in this frame keeps, like OP_CLOSURE's captures
+    Cell[] capture(Upvalue[] captures) {
+        if (captures.length == 0) return NO_UPVALUES;
+
+        Cell[] cells = new Cell[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            Upvalue capture = captures[i];
+            cells[i] = capture.isLocal() ? cell(capture.index()) : upvalues[capture.index()];
+        }
+        return cells;
     }
 }
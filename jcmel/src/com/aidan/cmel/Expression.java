@@ -25,6 +25,8 @@ public abstract class Expression {
     static class Assign extends Expression {
         final Token name;
         final  Expression value;
+        Access access = Access.GLOBAL;
+        int slot = -1;
         public Assign(Token name, Expression value) {
             this.name = name;
             this.value = value;
@@ -58,6 +60,7 @@ public abstract class Expression {
         final Expression left;
         final  Token operator;
         final  Expression right;
+        Specialization specialization = Specialization.UNINITIALIZED;
         public Binary(Expression left, Token operator, Expression right) {
             this.left = left;
             this.operator = operator;
@@ -73,6 +76,7 @@ public abstract class Expression {
         final Expression left;
         final  Token operator;
         final  Expression right;
+        Specialization specialization = Specialization.UNINITIALIZED;
         public Logical(Expression left, Token operator, Expression right) {
             this.left = left;
             this.operator = operator;
@@ -109,6 +113,7 @@ public abstract class Expression {
     static class Unary extends Expression {
         final Token operator;
         final  Expression right;
+        Specialization specialization = Specialization.UNINITIALIZED;
         public Unary(Token operator, Expression right) {
             this.operator = operator;
             this.right = right;
@@ -137,6 +142,7 @@ public abstract class Expression {
     static class Get extends Expression {
         final Expression object;
         final  Token name;
+        InlineCache cache = new InlineCache();
         public Get(Expression object, Token name) {
             this.object = object;
             this.name = name;
@@ -151,6 +157,7 @@ public abstract class Expression {
         final Expression object;
         final  Token name;
         final  Expression value;
+        InlineCache cache = new InlineCache();
         public Set(Expression object, Token name, Expression value) {
             this.object = object;
             this.name = name;
@@ -165,6 +172,10 @@ public abstract class Expression {
     static class Super extends Expression {
         final Token keyword;
         final  Token method;
+        Access access = Access.GLOBAL;
+        int slot = -1;
+        Access thisAccess = Access.GLOBAL;
+        int thisSlot = -1;
         public Super(Token keyword, Token method) {
             this.keyword = keyword;
             this.method = method;
@@ -177,6 +188,8 @@ public abstract class Expression {
     }
     static class This extends Expression {
         final Token keyword;
+        Access access = Access.GLOBAL;
+        int slot = -1;
         public This(Token keyword) {
             this.keyword = keyword;
         }
@@ -188,6 +201,8 @@ public abstract class Expression {
     }
     static class Variable extends Expression {
         final Token name;
+        Access access = Access.GLOBAL;
+        int slot = -1;
         public Variable(Token name) {
             this.name = name;
         }
@@ -200,6 +215,11 @@ public abstract class Expression {
     static class AnonFunction extends Expression {
         final List<Token> parameters;
         final  List<Statement> body;
+        int calls = 0;
+        ClosureCompiler.CompiledStatement compiled = null;
+        int frameSize = 0;
+        Upvalue[] upvalues = null;
+        int[] cells = null;
         public AnonFunction(List<Token> parameters, List<Statement> body) {
             this.parameters = parameters;
             this.body = body;
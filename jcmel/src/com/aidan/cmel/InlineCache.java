@@ -0,0 +1,79 @@
+package com.aidan.cmel;
+
+// Remembers what a property access site found for the instance shapes it has
+// seen: the field slot, or the method when the shape has no such field. A set
+// site also remembers the shape the instance moves to when the field is new.
+// A site starts out monomorphic, holds up to POLYMORPHIC_LIMIT shapes and after
+// that goes megamorphic, where it stops caching and does the full lookup.
+public class InlineCache {
+    private static final int POLYMORPHIC_LIMIT = 4;
+
+    private final Shape[] shapes = new Shape[POLYMORPHIC_LIMIT];
+    private final int[] slots = new int[POLYMORPHIC_LIMIT];
+    private final CmelFunction[] methods = new CmelFunction[POLYMORPHIC_LIMIT];
+    private final Shape[] transitions = new Shape[POLYMORPHIC_LIMIT];
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    public Object get(CmelInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) return instance.read(slots[i], methods[i], name);
+        }
+
+        // shapes and a class's methods never change, so misses are cached too
+        int slot = shape.slotOf(name.getSymbol());
+        CmelFunction method = slot < 0 ? shape.klass.findMethod(name.getSymbol()) : null;
+        remember(shape, slot, method, null);
+        return instance.read(slot, method, name);
+    }
+
+    // The method the name resolves to, unbound, or null when it's a field (or
+    // missing) so the caller falls back to get.
+    public CmelFunction findMethod(CmelInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) return methods[i];
+        }
+
+        int slot = shape.slotOf(name.getSymbol());
+        CmelFunction method = slot < 0 ? shape.klass.findMethod(name.getSymbol()) : null;
+        remember(shape, slot, method, null);
+        return method;
+    }
+
+    public void set(CmelInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                instance.write(slots[i], transitions[i], value);
+                return;
+            }
+        }
+
+        int slot = shape.slotOf(name.getSymbol());
+        Shape transition = shape;
+        if (slot < 0) {
+            slot = shape.size();
+            transition = shape.withField(name.getSymbol());
+        }
+        remember(shape, slot, null, transition);
+        instance.write(slot, transition, value);
+    }
+
+    private void remember(Shape shape, int slot, CmelFunction method, Shape transition) {
+        if (megamorphic) return;
+
+        if (size == POLYMORPHIC_LIMIT) {
+            megamorphic = true;
+            size = 0;
+            return;
+        }
+
+        shapes[size] = shape;
+        slots[size] = slot;
+        methods[size] = method;
+        transitions[size] = transition;
+        size++;
+    }
+}
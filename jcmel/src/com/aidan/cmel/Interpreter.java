@@ -3,23 +3,52 @@ package com.aidan.cmel;
 import com.aidan.cmel.nativeFunctions.Clock;
 import com.aidan.cmel.nativeFunctions.Input;
 import com.aidan.cmel.nativeFunctions.Print;
+import com.aidan.cmel.nativeFunctions.ReadLine;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
-public class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void> {
+public class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Completion> {
 
-    private Environment globals = new Environment();
-    private Environment environment = globals;
-    private Map<Expression, Integer> locals;
+    private final Environment globals = new Environment();
+
+    // One frame per call depth, reused by every call made at that depth, so a
+    // call only allocates the Cells of the variables its closures capture.
+    // frames[0] holds the locals of the script's own blocks.
+    private Environment[] frames = new Environment[64];
+    private Environment environment = frames[0] = new Environment(0);
+    private final ClosureCompiler compiler = new ClosureCompiler(this);
+    private Object returnValue;
+
+    private CmelCallable tailCallee;
+    private CmelInstance tailReceiver;
+    private Object[] tailArguments;
+
+    // Every Cmel call nests Java frames, so calls are counted and stopped at a
+    // limit with a Cmel error, like FRAMES_MAX in the C VM, before the Java
+    // stack runs out. Tail calls don't nest and aren't counted.
+    static final int DEFAULT_MAX_CALL_DEPTH = 10_000;
+    private final int maxCallDepth;
+    private int callDepth = 0;
+    // the call most recently made, where a StackOverflowError is reported
+    private Token callSite;
+
+    private final Output output;
+    private final LineReader input;
 
     public Interpreter() {
-        locals = new HashMap<>();
-        globals.define("clock", new Clock());
-        globals.define("print", new Print());
-        globals.define("input", new Input());
+        this(DEFAULT_MAX_CALL_DEPTH, Output.stdout(), LineReader.stdin());
+    }
+
+    public Interpreter(int maxCallDepth, Output output, LineReader input) {
+        this.maxCallDepth = maxCallDepth;
+        this.output = output;
+        this.input = input;
+
+        globals.define(Symbol.intern("clock"), new Clock());
+        globals.define(Symbol.intern("print"), new Print());
+        globals.define(Symbol.intern("input"), new Input());
+        globals.define(Symbol.intern("readLine"), new ReadLine());
     }
 
     public void interpret(List<Statement> statements) {
@@ -28,19 +57,36 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
                 execute(statement);
             }
         } catch (RuntimeError error) {
+            callDepth = 0;
             Cmel.runtimeError(error);
+        } catch (StackOverflowError error) {
+            stackOverflow(error);
         }
     }
 
-    private String stringify(Object value) {
-        if (value == null) return "nil";
-
-        if (value instanceof Double) {
-            String text = value.toString();
-            if (text.endsWith(".0"))
-                text = text.substring(0, text.length()-2);
-            return text;
+    public void interpret(ClosureCompiler.CompiledStatement program) {
+        try {
+            program.execute(frames[0]);
+        } catch (RuntimeError error) {
+            callDepth = 0;
+            Cmel.runtimeError(error);
+        } catch (StackOverflowError error) {
+            stackOverflow(error);
         }
+    }
+
+    // The thread's stack is sized for typical frames at the call depth limit,
+    // so calls whose frames are unusually deep, with a lot of nested expressions,
+    // can run out of Java stack first. That's the same error as going past the limit.
+    private void stackOverflow(StackOverflowError error) {
+        callDepth = 0;
+        if (callSite == null) throw error;
+        Cmel.runtimeError(new RuntimeError(callSite, "Stack overflow."));
+    }
+
+    public static String stringify(Object value) {
+        if (value == null) return "nil";
+        if (value instanceof Double number) return NumberFormatter.format(number);
 
         return value.toString();
     }
@@ -50,35 +96,192 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
     public Object visitAssignExpression(Expression.Assign expression) {
         Object value = evaluate(expression.value);
 
-        Integer distance = locals.get(expression);
-        if (distance != null)
-            environment.assignAt(distance, expression.name, value);
-        else
-            globals.assign(expression.name, value);
+        switch (expression.access) {
+            case LOCAL -> environment.set(expression.slot, value);
+            case CELL -> environment.cell(expression.slot).value = value;
+            case UPVALUE -> environment.upvalue(expression.slot).value = value;
+            case GLOBAL -> globals.assignGlobal(expression.slot, expression.name, value);
+        }
 
         return value;
     }
 
     @Override
     public Object visitBinaryExpression(Expression.Binary expression) {
+        if (expression.specialization == Specialization.NUMBER)
+            return numberBinary(expression);
+
         Object left = evaluate(expression.left);
         Object right = evaluate(expression.right);
 
-        switch (expression.operator.getType()) {
+        switch (expression.specialization) {
+            case STRING -> {
+                if (left instanceof CharSequence l && right instanceof CharSequence r)
+                    return Rope.concat(l, r);
+                expression.specialization = Specialization.GENERIC;
+            }
+            case UNINITIALIZED -> expression.specialization = specializeBinary(expression.operator, left, right);
+        }
+
+        return genericBinary(expression.operator, left, right);
+    }
+
+    private Specialization specializeBinary(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double)
+            return Specialization.NUMBER;
+        if (operator.getType() == TokenType.PLUS && left instanceof CharSequence && right instanceof CharSequence)
+            return Specialization.STRING;
+        return Specialization.GENERIC;
+    }
+
+    // Operands of a NUMBER binary come through the double channel, so the only
+    // Double allocated for a whole arithmetic subtree is the one for its result.
+    private Object numberBinary(Expression.Binary expression) {
+        if (!isArithmetic(expression.operator))
+            return comparisonDouble(expression);
+
+        try {
+            return binaryDouble(expression);
+        } catch (UnexpectedResult result) {
+            return result.value;
+        }
+    }
+
+    // as binaryDouble, for a result that's a boolean
+    private Object comparisonDouble(Expression.Binary expression) {
+        Token operator = expression.operator;
+
+        double left;
+        try {
+            left = evaluateDouble(expression.left);
+        } catch (UnexpectedResult result) {
+            expression.specialization = Specialization.GENERIC;
+            return genericBinary(operator, result.value, evaluate(expression.right));
+        }
+
+        double right;
+        try {
+            right = evaluateDouble(expression.right);
+        } catch (UnexpectedResult result) {
+            expression.specialization = Specialization.GENERIC;
+            return genericBinary(operator, left, result.value);
+        }
+
+        return numberComparison(operator, left, right);
+    }
+
+    // What a comparison gives for two numbers
+    private static boolean numberComparison(Token operator, double left, double right) {
+        return switch (operator.getType()) {
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            // same semantics as Double.equals, which isEqual relies on
+            case BANG_EQUAL -> Double.compare(left, right) != 0;
+            default -> Double.compare(left, right) == 0;
+        };
+    }
+
+    private static boolean isArithmetic(Token operator) {
+        return switch (operator.getType()) {
+            case MINUS, SLASH, STAR, PLUS -> true;
+            default -> false;
+        };
+    }
+
+    // Evaluates an expression that is expected to produce a number without
+    // boxing it. Nodes that have only seen numbers so far are computed on raw
+    // doubles, anything else is evaluated as usual and unboxed. If the value
+    // turns out not to be a number it comes back boxed in an UnexpectedResult.
+    double evaluateDouble(Expression expression) {
+        if (expression instanceof Expression.Literal literal && literal.value instanceof Double value)
+            return value;
+
+        if (expression instanceof Expression.Grouping grouping)
+            return evaluateDouble(grouping.expression);
+
+        if (expression instanceof Expression.Binary binary
+                && binary.specialization == Specialization.NUMBER && isArithmetic(binary.operator))
+            return binaryDouble(binary);
+
+        if (expression instanceof Expression.Unary unary
+                && unary.specialization == Specialization.NUMBER && unary.operator.getType() == TokenType.MINUS)
+            return unaryDouble(unary);
+
+        Object value = evaluate(expression);
+        if (value instanceof Double number)
+            return number;
+        throw new UnexpectedResult(value);
+    }
+
+    private double binaryDouble(Expression.Binary expression) {
+        Token operator = expression.operator;
+
+        double left;
+        try {
+            left = evaluateDouble(expression.left);
+        } catch (UnexpectedResult result) {
+            expression.specialization = Specialization.GENERIC;
+            return expectDouble(genericBinary(operator, result.value, evaluate(expression.right)));
+        }
+
+        double right;
+        try {
+            right = evaluateDouble(expression.right);
+        } catch (UnexpectedResult result) {
+            expression.specialization = Specialization.GENERIC;
+            return expectDouble(genericBinary(operator, left, result.value));
+        }
+
+        return numberArithmetic(operator, left, right);
+    }
+
+    // What an arithmetic operator gives for two numbers
+    private static double numberArithmetic(Token operator, double left, double right) {
+        return switch (operator.getType()) {
+            case MINUS -> left - right;
+            case SLASH -> {
+                if (right == 0)
+                    throw new RuntimeError(operator, "Cannot divide by zero.");
+                yield left / right;
+            }
+            case STAR -> left * right;
+            default -> left + right;
+        };
+    }
+
+    private double unaryDouble(Expression.Unary expression) {
+        try {
+            return -evaluateDouble(expression.right);
+        } catch (UnexpectedResult result) {
+            expression.specialization = Specialization.GENERIC;
+            return expectDouble(genericUnary(expression.operator, result.value));
+        }
+    }
+
+    static double expectDouble(Object value) {
+        if (value instanceof Double number)
+            return number;
+        throw new UnexpectedResult(value);
+    }
+
+    static Object genericBinary(Token operator, Object left, Object right) {
+        switch (operator.getType()) {
             case GREATER -> {
-                checkNumberOperands(expression.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left > (double)right;
             }
             case GREATER_EQUAL -> {
-                checkNumberOperands(expression.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left >= (double)right;
             }
             case LESS -> {
-                checkNumberOperands(expression.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             }
             case LESS_EQUAL -> {
-                checkNumberOperands(expression.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left <= (double)right;
             }
 
@@ -86,30 +289,31 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
             case EQUAL_EQUAL -> { return isEqual(left, right); }
 
             case MINUS -> {
-                checkNumberOperands(expression.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left - (double)right;
             }
             case SLASH -> {
-                checkNumberOperands(expression.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 if ((double) right == 0)
-                    throw new RuntimeError(expression.operator, "Cannot divide by zero.");
+                    throw new RuntimeError(operator, "Cannot divide by zero.");
                 return (double)left / (double)right;
             }
             case STAR  -> {
-                checkNumberOperands(expression.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left * (double)right;
             }
             case PLUS -> {
                 if (left instanceof Double l && right instanceof Double r)
                     return l + r;
-                if (left instanceof String l && right instanceof String r)
-                    return l + r;
-                if (left instanceof String l && right instanceof Double r)
-                    return l + stringify(r);
-                if (left instanceof Double l && right instanceof String r)
-                    return stringify(l) + r;
-
-                throw new RuntimeError(expression.operator, "Operands must be numbers or strings.");
+                // a Cmel string is a String or, once it gets long, a Rope
+                if (left instanceof CharSequence l && right instanceof CharSequence r)
+                    return Rope.concat(l, r);
+                if (left instanceof CharSequence l && right instanceof Double r)
+                    return Rope.concat(l, (double) r);
+                if (left instanceof Double l && right instanceof CharSequence r)
+                    return Rope.concat(stringify(l), r);
+
+                throw new RuntimeError(operator, "Operands must be numbers or strings.");
             }
         }
         return null;
@@ -119,10 +323,20 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
     public Object visitLogicalExpression(Expression.Logical expression) {
         Object left = evaluate(expression.left);
 
+        boolean truthy;
+        if (expression.specialization == Specialization.BOOLEAN && left instanceof Boolean b) {
+            truthy = b;
+        } else {
+            expression.specialization = expression.specialization == Specialization.UNINITIALIZED && left instanceof Boolean
+                    ? Specialization.BOOLEAN
+                    : Specialization.GENERIC;
+            truthy = isTruthy(left);
+        }
+
         if (expression.operator.getType() == TokenType.OR) {
-            if (isTruthy(left)) return left;
+            if (truthy) return left;
         } else {
-            if (!isTruthy(left)) return left;
+            if (!truthy) return left;
         }
 
         return evaluate(expression.right);
@@ -140,11 +354,32 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
 
     @Override
     public Object visitUnaryExpression(Expression.Unary expression) {
+        if (expression.specialization == Specialization.NUMBER) {
+            try {
+                return unaryDouble(expression);
+            } catch (UnexpectedResult result) {
+                return result.value;
+            }
+        }
+
         Object right = evaluate(expression.right);
 
-        switch (expression.operator.getType()) {
+        switch (expression.specialization) {
+            case BOOLEAN -> {
+                if (right instanceof Boolean r)
+                    return !r;
+                expression.specialization = Specialization.GENERIC;
+            }
+            case UNINITIALIZED -> expression.specialization = specializeUnary(expression.operator, right);
+        }
+
+        return genericUnary(expression.operator, right);
+    }
+
+    private static Object genericUnary(Token operator, Object right) {
+        switch (operator.getType()) {
             case MINUS -> {
-                checkNumberOperand(expression.operator, right);
+                checkNumberOperand(operator, right);
                 return -(double) right;
             }
             case BANG -> { return !isTruthy(right); }
@@ -154,59 +389,244 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
         return null;
     }
 
+    private Specialization specializeUnary(Token operator, Object right) {
+        if (operator.getType() == TokenType.MINUS && right instanceof Double)
+            return Specialization.NUMBER;
+        if (operator.getType() == TokenType.BANG && right instanceof Boolean)
+            return Specialization.BOOLEAN;
+        return Specialization.GENERIC;
+    }
+
     @Override
     public Object visitCallExpression(Expression.Call expression) {
+        if (expression.callee instanceof Expression.Get get)
+            return visitInvoke(expression, get);
+
         Object callee = evaluate(expression.callee);
+        return callWith(expression.paren, callee, expression.arguments);
+    }
+
+    // obj.method(args) calls the method with obj as its receiver straight away,
+    // the way OP_INVOKE does, rather than allocating a bound method to call
+    private Object visitInvoke(Expression.Call expression, Expression.Get get) {
+        Object object = evaluate(get.object);
+        List<Expression> arguments = expression.arguments;
+        Token paren = expression.paren;
+
+        if (object instanceof CmelInstance instance) {
+            CmelFunction method = get.cache.findMethod(instance, get.name);
+            if (method != null) {
+                return switch (arguments.size()) {
+                    case 0 -> invoke0(paren, instance, method);
+                    case 1 -> invoke1(paren, instance, method, evaluate(arguments.get(0)));
+                    case 2 -> invoke2(paren, instance, method, evaluate(arguments.get(0)), evaluate(arguments.get(1)));
+                    case 3 -> invoke3(paren, instance, method, evaluate(arguments.get(0)), evaluate(arguments.get(1)), evaluate(arguments.get(2)));
+                    default -> invoke(paren, instance, method, evaluateArguments(arguments));
+                };
+            }
+        }
+
+        Object callee = getProperty(object, get.name, get.cache);
+        return callWith(paren, callee, arguments);
+    }
+
+    // Calls with up to three arguments pass them along one by one, so no array
+    // of them is made. See CmelCallable.
+    private Object callWith(Token paren, Object callee, List<Expression> arguments) {
+        return switch (arguments.size()) {
+            case 0 -> call0(paren, callee);
+            case 1 -> call1(paren, callee, evaluate(arguments.get(0)));
+            case 2 -> call2(paren, callee, evaluate(arguments.get(0)), evaluate(arguments.get(1)));
+            case 3 -> call3(paren, callee, evaluate(arguments.get(0)), evaluate(arguments.get(1)), evaluate(arguments.get(2)));
+            default -> call(paren, callee, evaluateArguments(arguments));
+        };
+    }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expression argument : expression.arguments)
-            arguments.add(evaluate(argument));
+    private Object[] evaluateArguments(List<Expression> expressions) {
+        Object[] arguments = new Object[expressions.size()];
+        for (int i = 0; i < arguments.length; i++)
+            arguments[i] = evaluate(expressions.get(i));
+        return arguments;
+    }
+
+    Object call(Token paren, Object callee, Object[] arguments) {
+        Object result = callable(paren, callee, arguments.length).call(this, arguments);
+        callDepth--;
+        return result;
+    }
 
+    Object call0(Token paren, Object callee) {
+        Object result = callable(paren, callee, 0).call0(this);
+        callDepth--;
+        return result;
+    }
+
+    Object call1(Token paren, Object callee, Object a) {
+        Object result = callable(paren, callee, 1).call1(this, a);
+        callDepth--;
+        return result;
+    }
+
+    Object call2(Token paren, Object callee, Object a, Object b) {
+        Object result = callable(paren, callee, 2).call2(this, a, b);
+        callDepth--;
+        return result;
+    }
+
+    Object call3(Token paren, Object callee, Object a, Object b, Object c) {
+        Object result = callable(paren, callee, 3).call3(this, a, b, c);
+        callDepth--;
+        return result;
+    }
+
+    // the callee of a call that's about to be made, checked and counted
+    private CmelCallable callable(Token paren, Object callee, int argumentCount) {
+        if (!(callee instanceof CmelCallable))
+            throw new RuntimeError(paren, "Can only call functions and classes");
+
+        CmelCallable function = (CmelCallable) callee;
+
+        checkArity(paren, function, argumentCount);
+        enterCall(paren);
+        return function;
+    }
+
+    Object invoke(Token paren, CmelInstance instance, CmelFunction method, Object[] arguments) {
+        checkArity(paren, method, arguments.length);
+        enterCall(paren);
+        Object result = method.invoke(this, instance, arguments);
+        callDepth--;
+        return result;
+    }
+
+    Object invoke0(Token paren, CmelInstance instance, CmelFunction method) {
+        checkArity(paren, method, 0);
+        enterCall(paren);
+        Object result = method.invoke0(this, instance);
+        callDepth--;
+        return result;
+    }
+
+    Object invoke1(Token paren, CmelInstance instance, CmelFunction method, Object a) {
+        checkArity(paren, method, 1);
+        enterCall(paren);
+        Object result = method.invoke1(this, instance, a);
+        callDepth--;
+        return result;
+    }
+
+    Object invoke2(Token paren, CmelInstance instance, CmelFunction method, Object a, Object b) {
+        checkArity(paren, method, 2);
+        enterCall(paren);
+        Object result = method.invoke2(this, instance, a, b);
+        callDepth--;
+        return result;
+    }
+
+    Object invoke3(Token paren, CmelInstance instance, CmelFunction method, Object a, Object b, Object c) {
+        checkArity(paren, method, 3);
+        enterCall(paren);
+        Object result = method.invoke3(this, instance, a, b, c);
+        callDepth--;
+        return result;
+    }
+
+    // a RuntimeError unwinds past the matching decrements, interpret resets the count
+    private void enterCall(Token paren) {
+        callSite = paren;
+        if (++callDepth > maxCallDepth)
+            throw new RuntimeError(paren, "Stack overflow.");
+    }
+
+    // call and invoke for a call in tail position: the call is checked but only
+    // recorded, and made by finishCall once the current frame has unwound
+    Completion tailCall(Token paren, Object callee, Object[] arguments) {
         if (!(callee instanceof CmelCallable))
-            throw new RuntimeError(expression.paren, "Can only call functions and classes");
+            throw new RuntimeError(paren, "Can only call functions and classes");
 
         CmelCallable function = (CmelCallable) callee;
 
-        if (arguments.size() != function.arity())
-            throw new RuntimeError(expression.paren, "Expected " + function.arity() + " arguments, but got " + arguments.size() + " instead.");
-        return function.call(this, arguments);
+        checkArity(paren, function, arguments.length);
+        tailCallee = function;
+        tailReceiver = function instanceof CmelFunction method ? method.getReceiver() : null;
+        tailArguments = arguments;
+        return Completion.TAIL_CALL;
+    }
+
+    Completion tailInvoke(Token paren, CmelInstance instance, CmelFunction method, Object[] arguments) {
+        checkArity(paren, method, arguments.length);
+        tailCallee = method;
+        tailReceiver = instance;
+        tailArguments = arguments;
+        return Completion.TAIL_CALL;
+    }
+
+    // Turns the completion of a function body into the call's result. Tail calls
+    // are made here one after another instead of nesting, so tail recursion runs
+    // in constant Java stack.
+    Object finishCall(CmelCallable function, CmelInstance receiver, Completion completion) {
+        while (completion == Completion.TAIL_CALL) {
+            function = tailCallee;
+            receiver = tailReceiver;
+            Object[] arguments = tailArguments;
+            tailCallee = null;
+            tailReceiver = null;
+            tailArguments = null;
+
+            if (function instanceof CmelFunction method)
+                completion = method.execute(this, receiver, arguments);
+            else if (function instanceof CmelAnonFunction anonFunction)
+                completion = anonFunction.execute(this, arguments);
+            else
+                return function.call(this, arguments);
+        }
+
+        Object value = completion == Completion.RETURN ? takeReturnValue() : null;
+        if (function instanceof CmelFunction method && method.isInitializer())
+            return receiver;
+
+        return value;
+    }
+
+    private static void checkArity(Token paren, CmelCallable function, int argumentCount) {
+        if (argumentCount != function.arity())
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments, but got " + argumentCount + " instead.");
     }
 
     @Override
     public Object visitTernaryExpression(Expression.Ternary expression) {
-        Object test = evaluate(expression.test);
-        Object left = evaluate(expression.left);
-        Object right = evaluate(expression.right);
-
-        return isTruthy(test) ? left : right;
+        return isTruthy(evaluate(expression.test))
+                ? evaluate(expression.left)
+                : evaluate(expression.right);
     }
 
     @Override
     public Object visitVariableExpression(Expression.Variable expression) {
-        return lookupVariable(expression.name, expression);
+        return lookupVariable(expression.name, expression.access, expression.slot);
     }
 
-    private Object lookupVariable(Token name, Expression expression) {
-        Integer distance = locals.get(expression);
-        if (distance != null)
-            return environment.getAt(distance, name.getLexeme());
-        else
-            return globals.get(name);
+    private Object lookupVariable(Token name, Access access, int slot) {
+        return switch (access) {
+            case LOCAL -> environment.get(slot);
+            case CELL -> environment.cell(slot).value;
+            case UPVALUE -> environment.upvalue(slot).value;
+            case GLOBAL -> globals.getGlobal(slot, name);
+        };
     }
 
     @Override
     public Object visitAnonFunctionExpression(Expression.AnonFunction expression) {
-        return new CmelAnonFunction(expression, environment);
+        return new CmelAnonFunction(expression, environment.capture(expression.upvalues));
     }
 
+    // a block's locals have slots in the current frame, so it needs no environment of its own
     @Override
-    public Void visitBlockStatement(Statement.Block statement) {
-        executeBlock(statement.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStatement(Statement.Block statement) {
+        return executeBlock(statement.statements, environment);
     }
 
     @Override
-    public Void visitClassStatement(Statement.Class statement) {
+    public Completion visitClassStatement(Statement.Class statement) {
         Object superclass = null;
         if (statement.superclass != null) {
             superclass = evaluate(statement.superclass);
@@ -214,90 +634,145 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
                 throw new RuntimeError(statement.superclass.name, "Superclass must be a class.");
             }
         }
-        environment.define(statement.name.getLexeme(), null);
 
-        if (statement.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
-        }
+        Cell cell = declare(statement.access, statement.slot);
+        if (statement.superclass != null)
+            environment.set(statement.superSlot, new Cell(superclass));
 
-        Map<String, CmelFunction> methods = new HashMap<>();
+        Table<CmelFunction> methods = new Table<>();
         for (Statement.Function method : statement.methods) {
-            CmelFunction function = new CmelFunction(method, environment, method.name.getLexeme().equals("init"));
-            methods.put(method.name.getLexeme(), function);
+            CmelFunction function = new CmelFunction(method, environment.capture(method.upvalues), true);
+            methods.put(method.name.getSymbol(), function);
         }
 
         CmelClass klass = new CmelClass(statement.name.getLexeme(), (CmelClass)superclass, methods);
 
-        if (superclass != null) {
-            environment = environment.getEnclosing();
-        }
-
-        environment.assign(statement.name, klass);
-        return null;
+        define(statement.access, statement.slot, cell, klass);
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitThisExpression(Expression.This expression) {
-        return lookupVariable(expression.keyword, expression);
+        return lookupVariable(expression.keyword, expression.access, expression.slot);
     }
 
     @Override
-    public Void visitExpressionStatementStatement(Statement.ExpressionStatement statement) {
+    public Completion visitExpressionStatementStatement(Statement.ExpressionStatement statement) {
         evaluate(statement.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStatementStatement(Statement.IfStatement statement) {
+    public Completion visitIfStatementStatement(Statement.IfStatement statement) {
         if (isTruthy(evaluate(statement.condition)))
-            execute(statement.thenBranch);
+            return execute(statement.thenBranch);
         else if (statement.elseBranch != null)
-            execute(statement.elseBranch);
-        return null;
+            return execute(statement.elseBranch);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitVarStatement(Statement.Var statement) {
+    public Completion visitVarStatement(Statement.Var statement) {
+        Cell cell = declare(statement.access, statement.slot);
+
         Object value = null;
         if (statement.initializer != null)
             value = evaluate(statement.initializer);
 
-        environment.define(statement.name.getLexeme(), value);
-        return null;
+        define(statement.access, statement.slot, cell, value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStatement(Statement.While statement) {
-        while (isTruthy(evaluate(statement.condition))) {
-            execute(statement.body);
+    public Completion visitWhileStatement(Statement.While statement) {
+        while (statement.compiled == null) {
+            if (!isTruthy(evaluate(statement.condition))) return Completion.NORMAL;
+
+            Completion completion = execute(statement.body);
+            if (completion != Completion.NORMAL) return completion;
+
+            if (++statement.iterations == ClosureCompiler.HOT_THRESHOLD)
+                statement.compiled = compiler.compile(statement);
         }
-        return null;
+
+        // the loop state lives in the environment, so compiled code can carry on from here
+        return statement.compiled.execute(environment);
     }
 
     @Override
-    public Void visitFunctionStatement(Statement.Function statement) {
-        CmelFunction function = new CmelFunction(statement, environment, false);
-        environment.define(statement.name.getLexeme(), function);
-        return null;
+    public Completion visitForStatement(Statement.For statement) {
+        // the loop variable is declared once, so every iteration (and any closure
+        // made in one) shares it, the same as when for desugared to while
+        if (statement.initializer != null)
+            execute(statement.initializer);
+
+        while (statement.compiled == null) {
+            if (!isTruthy(evaluate(statement.condition))) return Completion.NORMAL;
+
+            Completion completion = execute(statement.body);
+            if (completion != Completion.NORMAL) return completion;
+
+            if (statement.increment != null)
+                evaluate(statement.increment);
+
+            if (++statement.iterations == ClosureCompiler.HOT_THRESHOLD)
+                statement.compiled = compiler.compileLoop(statement);
+        }
+
+        // see visitWhileStatement
+        return statement.compiled.execute(environment);
     }
 
     @Override
-    public Void visitReturnStatement(Statement.Return statement) {
+    public Completion visitFunctionStatement(Statement.Function statement) {
+        Cell cell = declare(statement.access, statement.slot);
+        CmelFunction function = new CmelFunction(statement, environment.capture(statement.upvalues), false);
+        define(statement.access, statement.slot, cell, function);
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitReturnStatement(Statement.Return statement) {
+        if (statement.tailCall)
+            return visitTailCall((Expression.Call) statement.value);
+
         Object value = null;
         if (statement.value != null) value = evaluate(statement.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
+    }
+
+    // visitCallExpression for `return f(x);`
+    private Completion visitTailCall(Expression.Call expression) {
+        if (expression.callee instanceof Expression.Get get) {
+            Object object = evaluate(get.object);
+
+            if (object instanceof CmelInstance instance) {
+                CmelFunction method = get.cache.findMethod(instance, get.name);
+                if (method != null)
+                    return tailInvoke(expression.paren, instance, method, evaluateArguments(expression.arguments));
+            }
+
+            Object callee = getProperty(object, get.name, get.cache);
+            return tailCall(expression.paren, callee, evaluateArguments(expression.arguments));
+        }
+
+        Object callee = evaluate(expression.callee);
+        return tailCall(expression.paren, callee, evaluateArguments(expression.arguments));
     }
 
     @Override
     public Object visitGetExpression(Expression.Get expression) {
-        Object object = evaluate(expression.object);
+        return getProperty(evaluate(expression.object), expression.name, expression.cache);
+    }
+
+    static Object getProperty(Object object, Token name, InlineCache cache) {
         if (object instanceof CmelInstance) {
-            return ((CmelInstance) object).get(expression.name);
+            return ((CmelInstance) object).get(name, cache);
         }
 
-        throw new RuntimeError(expression.name, "Only instances have properties");
+        throw new RuntimeError(name, "Only instances have properties");
     }
 
     @Override
@@ -309,17 +784,16 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
         }
 
         Object value = evaluate(expression.value);
-        ((CmelInstance) object).set(expression.name, value);
+        ((CmelInstance) object).set(expression.name, value, expression.cache);
         return value;
     }
 
     @Override
     public Object visitSuperExpression(Expression.Super expression) {
-        int distance = locals.get(expression);
-        CmelClass superclass = (CmelClass) environment.getAt(distance, "super");
-        CmelInstance object = (CmelInstance) environment.getAt(distance - 1, "this");
+        CmelClass superclass = (CmelClass) lookupVariable(expression.keyword, expression.access, expression.slot);
+        CmelInstance object = (CmelInstance) lookupVariable(expression.keyword, expression.thisAccess, expression.thisSlot);
 
-        CmelFunction method = superclass.findMethod(expression.method.getLexeme());
+        CmelFunction method = superclass.findMethod(expression.method.getSymbol());
 
         if (method == null) {
             throw new RuntimeError(expression.method, "Undefined property '" + expression.method.getLexeme() + "'.");
@@ -328,24 +802,46 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
         return method.bind(object);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    // A captured local's Cell is in its slot before its value is worked out, so
+    // a closure made while working it out (a recursive local function, say)
+    // captures the variable itself. Returns null for any other variable.
+    private Cell declare(Access access, int slot) {
+        if (access != Access.CELL) return null;
+
+        Cell cell = new Cell(null);
+        environment.set(slot, cell);
+        return cell;
+    }
+
+    private void define(Access access, int slot, Cell cell, Object value) {
+        switch (access) {
+            case CELL -> cell.value = value;
+            case LOCAL -> environment.set(slot, value);
+            default -> globals.set(slot, value);
+        }
+    }
+
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isEqual(Object left, Object right) {
         if (left == null && right == null) return true;
         if (left == null) return false;
 
+        if (left instanceof Rope) left = left.toString();
+        if (right instanceof Rope) right = right.toString();
+
         return left.equals(right);
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
@@ -355,26 +851,71 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
         return expression.accept(this);
     }
 
-    private void execute(Statement statement) {
-        statement.accept(this);
+    private Completion execute(Statement statement) {
+        return statement.accept(this);
     }
 
-    public void executeBlock(List<Statement> statements, Environment environment) {
+    public Completion executeBlock(List<Statement> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
-            for (Statement statement : statements)
-                execute(statement);
+            for (Statement statement : statements) {
+                Completion completion = execute(statement);
+                if (completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous;
         }
     }
 
+    void setReturnValue(Object value) {
+        returnValue = value;
+    }
+
+    // hands over the value of the return that just completed, without keeping it alive
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
+    ClosureCompiler.CompiledStatement compileFunction(List<Statement> body) {
+        return compiler.compile(body);
+    }
+
+    // The frame for a call about to run at the current call depth. CmelFunction
+    // and CmelAnonFunction fill in its slots and exit it once the body is done.
+    Environment enterFrame(int size, Cell[] upvalues) {
+        if (callDepth == frames.length)
+            frames = Arrays.copyOf(frames, frames.length * 2);
+
+        Environment frame = frames[callDepth];
+        if (frame == null)
+            frame = frames[callDepth] = new Environment(size);
+
+        frame.enter(size, upvalues);
+        return frame;
+    }
+
+    int globalSlot(Symbol name) {
+        return globals.slot(name);
+    }
+
+    // called by the Resolver with the number of slots the script's blocks use
+    void reserveSlots(int size) {
+        frames[0].enter(size, null);
+    }
+
     public Environment getGlobals() {
         return globals;
     }
 
-    public void resolve(Expression expression, int depth) {
-        locals.put(expression, depth);
+    public Output getOutput() {
+        return output;
+    }
+
+    public LineReader getInput() {
+        return input;
     }
 }
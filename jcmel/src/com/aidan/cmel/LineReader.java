@@ -0,0 +1,90 @@
+package com.aidan.cmel;
+
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+// The one reader on stdin, shared by input(), readLine() and the REPL, so no
+// line that one of them has buffered is lost to the others. See Output for
+// the other end.
+public class LineReader {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BufferedReader reader;
+
+    public LineReader(InputStream in) {
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    public static LineReader stdin() {
+        return new LineReader(new FileInputStream(FileDescriptor.in));
+    }
+
+    // the next line without its line terminator, or null at the end of the input
+    public String readLine() {
+        try {
+            return reader.readLine();
+        } catch (IOException error) {
+            return null;
+        }
+    }
+
+    // whether a line can be read without waiting on stdin
+    public boolean ready() {
+        try {
+            return reader.ready();
+        } catch (IOException error) {
+            return false;
+        }
+    }
+
+    // A line that is a number, as Double.parseDouble reads it, comes back as a
+    // Double and anything else as it is. Whole numbers are worked out as they
+    // are scanned; the rest only go to parseDouble if they could be a number.
+    public static Object value(String line) {
+        if (line == null) return null;
+
+        int length = line.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < length && (line.charAt(i) == '-' || line.charAt(i) == '+'))
+            negative = line.charAt(i++) == '-';
+
+        long whole = 0;
+        int digits = 0;
+        while (i < length && isDigit(line.charAt(i)) && digits < 15) {
+            whole = whole * 10 + (line.charAt(i++) - '0');
+            digits++;
+        }
+        if (i == length && digits > 0)
+            return negative ? -(double) whole : (double) whole;
+
+        if (!couldBeNumber(line)) return line;
+
+        try {
+            return Double.parseDouble(line);
+        } catch (NumberFormatException error) {
+            return line;
+        }
+    }
+
+    // parseDouble skips surrounding whitespace and an optional sign, and then
+    // needs a digit, a '.', NaN or Infinity
+    private static boolean couldBeNumber(String line) {
+        int i = 0;
+        while (i < line.length() && line.charAt(i) <= ' ') i++;
+        if (i < line.length() && (line.charAt(i) == '-' || line.charAt(i) == '+')) i++;
+        if (i == line.length()) return false;
+
+        char c = line.charAt(i);
+        return isDigit(c) || c == '.' || c == 'N' || c == 'I';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
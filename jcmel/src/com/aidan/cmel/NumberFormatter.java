@@ -0,0 +1,233 @@
+package com.aidan.cmel;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+// How Cmel writes a number: the shortest digits that read back as the same
+// double, laid out as Double.toString lays them out, except that whole numbers
+// lose their ".0" (1, 2.5, -0, 1.0E8). Double.toString only writes "n.0" for
+// whole numbers under 10^7, so those are formatted as longs straight away.
+//
+// Before JDK 19, Double.toString sometimes gives more digits than it needs
+// (2e23 comes out as 1.9999999999999998E23), so the digits are worked out here
+// instead, with Giulietti's Schubfach method ("The Schubfach way to render
+// doubles", 2020), the one JDK 19's Double.toString uses. It does that in a few
+// long multiplications, without the trial and error of a search.
+public final class NumberFormatter {
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+    private static final double PLAIN_LIMIT = 1e7;
+
+    // a double is c * 2^q, with c taking 53 bits for a normal one
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << 52;
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    private NumberFormatter() {
+    }
+
+    public static String format(double value) {
+        if (isWhole(value)) return Long.toString((long) value);
+
+        StringBuilder out = new StringBuilder(24);
+        appendShortest(value, out);
+        return out.toString();
+    }
+
+    // the same, into out without making a String on the way
+    public static void format(double value, StringBuilder out) {
+        if (isWhole(value))
+            out.append((long) value);
+        else
+            appendShortest(value, out);
+    }
+
+    private static boolean isWhole(double value) {
+        return value > -PLAIN_LIMIT && value < PLAIN_LIMIT
+                && value == (long) value
+                && Double.doubleToRawLongBits(value) != NEGATIVE_ZERO;
+    }
+
+    private static void appendShortest(double value, StringBuilder out) {
+        long bits = Double.doubleToRawLongBits(value);
+        if (bits == NEGATIVE_ZERO) {
+            out.append("-0");
+            return;
+        }
+        if (!Double.isFinite(value)) {
+            out.append(value);
+            return;
+        }
+
+        if (value < 0) out.append('-');
+        int exponent = (int) (bits >>> 52) & 0x7ff;
+        if (exponent == 0) {
+            BigDecimal decimal = subnormal(Math.abs(value));
+            append(decimal.unscaledValue().longValue(), -decimal.scale(), out);
+        } else {
+            shortest(exponent + Q_MIN - 1, C_MIN | bits & C_MIN - 1, out);
+        }
+    }
+
+    // Of the decimals that read back as c * 2^q, the ones with fewest digits,
+    // and of those the closest (section 9 of the paper). With k chosen so that
+    // 10^k is just under the gap between neighbouring doubles, vb is 4 * v / 10^k
+    // (rounded, but odd if that's inexact) and vbl and vbr the same for the
+    // halfway points to the neighbours, which read back as v when c is even.
+    // Only s * 10^k and (s + 1) * 10^k can be the answer, unless one of the
+    // multiples of 10^(k + 1) either side of them is.
+    private static void shortest(int q, long c, StringBuilder out) {
+        int odd = (int) c & 1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = floorLog10Pow2(q);
+        } else {
+            // a power of two, whose neighbour below is half as far as the one above
+            cbl = cb - 1;
+            k = floorLog10ThreeQuartersPow2(q);
+        }
+        int h = q + floorLog2Pow10(-k) + 2;
+
+        long g1 = Powers.G[k - Powers.K_MIN << 1];
+        long g0 = Powers.G[k - Powers.K_MIN << 1 | 1];
+        long vb = roundToOdd(g1, g0, cb << h);
+        long vbl = roundToOdd(g1, g0, cbl << h);
+        long vbr = roundToOdd(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            // s / 10 * 10, dividing by multiplying
+            long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + odd <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + odd <= vbr;
+            if (upin != wpin) {
+                append(upin ? sp10 : tp10, k, out);
+                return;
+            }
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + odd <= s << 2;
+        boolean win = (t << 2) + odd <= vbr;
+        if (uin != win) {
+            append(uin ? s : t, k, out);
+            return;
+        }
+        long cmp = vb - (s + t << 1);
+        append(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k, out);
+    }
+
+    // cp * g / 2^127, where g is g1 * 2^63 + g0, rounded to odd
+    private static long roundToOdd(long g1, long g0, long cp) {
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    // floor(e * log10(2))
+    private static int floorLog10Pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    // floor(log10(3/4 * 2^e))
+    private static int floorLog10ThreeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    // floor(e * log2(10))
+    private static int floorLog2Pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+
+    // 10^-k as a 126 bit g, just over it, times a power of two, for each k that
+    // shortest can ask for. They're only worked out once a number needs them.
+    private static final class Powers {
+        static final int K_MIN = floorLog10Pow2(Q_MIN);
+        static final int K_MAX = floorLog10Pow2(2046 + Q_MIN - 1);
+        static final long[] G = new long[K_MAX - K_MIN + 1 << 1];
+
+        static {
+            BigInteger ten = BigInteger.TEN;
+            for (int k = K_MIN; k <= K_MAX; k++) {
+                int shift = 125 - floorLog2Pow10(-k);
+                BigInteger g;
+                if (k <= 0) {
+                    BigInteger power = ten.pow(-k);
+                    g = shift >= 0 ? power.shiftLeft(shift) : power.shiftRight(-shift);
+                } else {
+                    g = BigInteger.ONE.shiftLeft(shift).divide(ten.pow(k));
+                }
+                g = g.add(BigInteger.ONE);
+                G[k - K_MIN << 1] = g.shiftRight(63).longValue();
+                G[k - K_MIN << 1 | 1] = g.longValue() & MASK_63;
+            }
+        }
+    }
+
+    // A subnormal has so few bits that the shortest decimal can be shorter than
+    // Schubfach will go, so that's searched for from one digit up. 17 always do.
+    private static BigDecimal subnormal(double value) {
+        BigDecimal exact = new BigDecimal(value);
+
+        for (int digits = 1; digits < 17; digits++) {
+            BigDecimal closest = closest(exact, value, digits);
+            if (closest != null) return closest.stripTrailingZeros();
+        }
+        return exact.round(new MathContext(17, RoundingMode.HALF_EVEN)).stripTrailingZeros();
+    }
+
+    // Of the decimals with this many digits, the nearest one below value and
+    // the nearest above are the only ones that can read back as it. Whichever
+    // is closer is tried first.
+    private static BigDecimal closest(BigDecimal exact, double value, int digits) {
+        BigDecimal nearest = exact.round(new MathContext(digits, RoundingMode.HALF_EVEN));
+        if (nearest.doubleValue() == value) return nearest;
+
+        RoundingMode away = nearest.compareTo(exact) < 0 ? RoundingMode.CEILING : RoundingMode.FLOOR;
+        BigDecimal other = exact.round(new MathContext(digits, away));
+        return other.doubleValue() == value ? other : null;
+    }
+
+    // significand * 10^exponent, as Double.toString would: plain from 10^-3 up
+    // to 10^7, and otherwise one digit, a point and the rest, then E and the
+    // exponent. There's always a digit after the point.
+    private static void append(long significand, int exponent, StringBuilder out) {
+        while (significand % 10 == 0) {
+            significand /= 10;
+            exponent++;
+        }
+        String digits = Long.toString(significand);
+        // the power of ten of the first digit
+        exponent += digits.length() - 1;
+
+        if (exponent >= -3 && exponent < 7) {
+            if (exponent < 0) {
+                out.append("0.");
+                for (int i = -1; i > exponent; i--) out.append('0');
+                out.append(digits);
+            } else if (digits.length() > exponent + 1) {
+                out.append(digits, 0, exponent + 1).append('.').append(digits, exponent + 1, digits.length());
+            } else {
+                out.append(digits);
+                for (int i = digits.length(); i <= exponent; i++) out.append('0');
+                out.append(".0");
+            }
+        } else {
+            out.append(digits.charAt(0)).append('.');
+            if (digits.length() > 1)
+                out.append(digits, 1, digits.length());
+            else
+                out.append('0');
+            out.append('E').append(exponent);
+        }
+    }
+}
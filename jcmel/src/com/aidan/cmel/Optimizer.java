@@ -0,0 +1,262 @@
+package com.aidan.cmel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.aidan.cmel.Interpreter.genericBinary;
+import static com.aidan.cmel.Interpreter.isTruthy;
+
+// Runs between the Parser and the Resolver. Folds operators whose operands are
+// all literals into a single Literal, and drops code that a literal condition
+// rules out. An operation that would fail at runtime (1 / 0, "a" - 1) is left
+// alone so it still fails there. Nodes with nothing to fold come back as they are.
+public class Optimizer implements Expression.Visitor<Expression>, Statement.Visitor<Statement> {
+
+    public List<Statement> optimize(List<Statement> statements) {
+        List<Statement> optimized = new ArrayList<>(statements.size());
+        for (Statement statement : statements) {
+            Statement result = optimize(statement);
+            // null is a statement that can never run
+            if (result != null)
+                optimized.add(result);
+        }
+
+        return optimized;
+    }
+
+    private Statement optimize(Statement statement) {
+        return statement.accept(this);
+    }
+
+    // for a statement that something else runs, which has to stay a statement
+    private Statement optimizeBody(Statement statement) {
+        Statement result = optimize(statement);
+        return result != null ? result : new Statement.Block(List.of());
+    }
+
+    private Expression optimize(Expression expression) {
+        return expression.accept(this);
+    }
+
+    private List<Expression> optimizeExpressions(List<Expression> expressions) {
+        List<Expression> optimized = new ArrayList<>(expressions.size());
+        for (Expression expression : expressions)
+            optimized.add(optimize(expression));
+        return optimized;
+    }
+
+    @Override
+    public Expression visitAssignExpression(Expression.Assign expression) {
+        Expression value = optimize(expression.value);
+        if (value == expression.value) return expression;
+
+        return new Expression.Assign(expression.name, value);
+    }
+
+    @Override
+    public Expression visitTernaryExpression(Expression.Ternary expression) {
+        Expression test = optimize(expression.test);
+        Expression left = optimize(expression.left);
+        Expression right = optimize(expression.right);
+
+        if (test instanceof Expression.Literal literal)
+            return isTruthy(literal.value) ? left : right;
+
+        if (test == expression.test && left == expression.left && right == expression.right) return expression;
+        return new Expression.Ternary(test, expression.question, left, expression.colon, right);
+    }
+
+    @Override
+    public Expression visitBinaryExpression(Expression.Binary expression) {
+        Expression left = optimize(expression.left);
+        Expression right = optimize(expression.right);
+
+        if (left instanceof Expression.Literal l && right instanceof Expression.Literal r) {
+            try {
+                return new Expression.Literal(genericBinary(expression.operator, l.value, r.value));
+            } catch (RuntimeError error) {
+                // reported when the expression runs, if it ever does
+            }
+        }
+
+        if (left == expression.left && right == expression.right) return expression;
+        return new Expression.Binary(left, expression.operator, right);
+    }
+
+    @Override
+    public Expression visitLogicalExpression(Expression.Logical expression) {
+        Expression left = optimize(expression.left);
+        Expression right = optimize(expression.right);
+
+        // the same short circuit as Interpreter.visitLogicalExpression
+        if (left instanceof Expression.Literal literal) {
+            boolean truthy = isTruthy(literal.value);
+            if (expression.operator.getType() == TokenType.OR)
+                return truthy ? left : right;
+            return !truthy ? left : right;
+        }
+
+        if (left == expression.left && right == expression.right) return expression;
+        return new Expression.Logical(left, expression.operator, right);
+    }
+
+    @Override
+    public Expression visitGroupingExpression(Expression.Grouping expression) {
+        Expression inner = optimize(expression.expression);
+        if (inner instanceof Expression.Literal) return inner;
+
+        if (inner == expression.expression) return expression;
+        return new Expression.Grouping(inner);
+    }
+
+    @Override
+    public Expression visitLiteralExpression(Expression.Literal expression) {
+        return expression;
+    }
+
+    @Override
+    public Expression visitUnaryExpression(Expression.Unary expression) {
+        Expression right = optimize(expression.right);
+
+        if (right instanceof Expression.Literal literal) {
+            switch (expression.operator.getType()) {
+                case MINUS -> {
+                    if (literal.value instanceof Double value)
+                        return new Expression.Literal(-value);
+                }
+                case BANG -> { return new Expression.Literal(!isTruthy(literal.value)); }
+            }
+        }
+
+        if (right == expression.right) return expression;
+        return new Expression.Unary(expression.operator, right);
+    }
+
+    @Override
+    public Expression visitCallExpression(Expression.Call expression) {
+        return new Expression.Call(optimize(expression.callee), expression.paren, optimizeExpressions(expression.arguments));
+    }
+
+    @Override
+    public Expression visitGetExpression(Expression.Get expression) {
+        Expression object = optimize(expression.object);
+        if (object == expression.object) return expression;
+
+        return new Expression.Get(object, expression.name);
+    }
+
+    @Override
+    public Expression visitSetExpression(Expression.Set expression) {
+        Expression object = optimize(expression.object);
+        Expression value = optimize(expression.value);
+        if (object == expression.object && value == expression.value) return expression;
+
+        return new Expression.Set(object, expression.name, value);
+    }
+
+    @Override
+    public Expression visitSuperExpression(Expression.Super expression) {
+        return expression;
+    }
+
+    @Override
+    public Expression visitThisExpression(Expression.This expression) {
+        return expression;
+    }
+
+    @Override
+    public Expression visitVariableExpression(Expression.Variable expression) {
+        return expression;
+    }
+
+    @Override
+    public Expression visitAnonFunctionExpression(Expression.AnonFunction expression) {
+        return new Expression.AnonFunction(expression.parameters, optimize(expression.body));
+    }
+
+    @Override
+    public Statement visitBlockStatement(Statement.Block statement) {
+        return new Statement.Block(optimize(statement.statements));
+    }
+
+    @Override
+    public Statement visitExpressionStatementStatement(Statement.ExpressionStatement statement) {
+        Expression expression = optimize(statement.expression);
+        if (expression == statement.expression) return statement;
+
+        return new Statement.ExpressionStatement(expression);
+    }
+
+    @Override
+    public Statement visitIfStatementStatement(Statement.IfStatement statement) {
+        Expression condition = optimize(statement.condition);
+
+        if (condition instanceof Expression.Literal literal) {
+            if (isTruthy(literal.value))
+                return optimize(statement.thenBranch);
+            return statement.elseBranch != null ? optimize(statement.elseBranch) : null;
+        }
+
+        Statement thenBranch = optimizeBody(statement.thenBranch);
+        Statement elseBranch = statement.elseBranch != null ? optimize(statement.elseBranch) : null;
+        return new Statement.IfStatement(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Statement visitVarStatement(Statement.Var statement) {
+        if (statement.initializer == null) return statement;
+
+        Expression initializer = optimize(statement.initializer);
+        if (initializer == statement.initializer) return statement;
+
+        return new Statement.Var(statement.name, initializer);
+    }
+
+    @Override
+    public Statement visitWhileStatement(Statement.While statement) {
+        Expression condition = optimize(statement.condition);
+
+        if (condition instanceof Expression.Literal literal && !isTruthy(literal.value))
+            return null;
+
+        return new Statement.While(condition, optimizeBody(statement.body));
+    }
+
+    @Override
+    public Statement visitForStatement(Statement.For statement) {
+        Statement initializer = statement.initializer != null ? optimize(statement.initializer) : null;
+        Expression condition = optimize(statement.condition);
+
+        if (condition instanceof Expression.Literal literal && !isTruthy(literal.value)) {
+            // the initializer still runs, in a scope of its own
+            return initializer != null ? new Statement.Block(List.of(initializer)) : null;
+        }
+
+        Expression increment = statement.increment != null ? optimize(statement.increment) : null;
+        return new Statement.For(initializer, condition, increment, optimizeBody(statement.body));
+    }
+
+    @Override
+    public Statement visitFunctionStatement(Statement.Function statement) {
+        return new Statement.Function(statement.name, statement.parameters, optimize(statement.body));
+    }
+
+    @Override
+    public Statement visitReturnStatement(Statement.Return statement) {
+        if (statement.value == null) return statement;
+
+        Expression value = optimize(statement.value);
+        if (value == statement.value) return statement;
+
+        return new Statement.Return(statement.keyword, value);
+    }
+
+    @Override
+    public Statement visitClassStatement(Statement.Class statement) {
+        List<Statement.Function> methods = new ArrayList<>(statement.methods.size());
+        for (Statement.Function method : statement.methods)
+            methods.add((Statement.Function) optimize(method));
+
+        return new Statement.Class(statement.name, statement.superclass, methods);
+    }
+}
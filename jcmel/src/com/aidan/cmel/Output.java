@@ -0,0 +1,155 @@
+package com.aidan.cmel;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Everything a script prints, encoded as UTF-8 into one large buffer that goes
+// to stdout in a single write when it fills up, when it has waited a flush
+// interval, or when something needs the output to be seen: a call to input(),
+// an error, the end of the script. Line buffered output, the default on a
+// terminal, goes out at the end of every line instead.
+//
+// The interval is kept by a daemon thread of its own, so output printed before
+// a long computation still shows up while it runs. The buffer is only touched
+// under this object's lock.
+public class Output {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    static final int DEFAULT_FLUSH_MILLIS = 100;
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int count = 0;
+
+    private final boolean lineBuffered;
+    private final int flushMillis;
+
+    // reused for every number printed, see println(double)
+    private final StringBuilder digits = new StringBuilder(32);
+
+    public Output(OutputStream out, int bufferSize, int flushMillis, boolean lineBuffered) {
+        this.out = out;
+        this.buffer = new byte[bufferSize];
+        this.flushMillis = flushMillis;
+        this.lineBuffered = lineBuffered;
+
+        if (!lineBuffered && flushMillis > 0) {
+            Thread flusher = new Thread(this::flushEvery, "cmel-output");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    // stdout with the defaults, line buffered when it's a terminal
+    public static Output stdout() {
+        return stdout(DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_MILLIS, isTerminal());
+    }
+
+    // Whether stdout is a terminal. System.console() also needs stdin to be
+    // one, so on Linux stdout's file descriptor is looked at instead.
+    public static boolean isTerminal() {
+        Path stdout = Paths.get("/proc/self/fd/1");
+        if (!Files.exists(stdout)) return System.console() != null;
+
+        try {
+            String target = Files.readSymbolicLink(stdout).toString();
+            return target.startsWith("/dev/pts/") || target.startsWith("/dev/tty");
+        } catch (IOException | UnsupportedOperationException error) {
+            return System.console() != null;
+        }
+    }
+
+    public static Output stdout(int bufferSize, int flushMillis, boolean lineBuffered) {
+        return new Output(new FileOutputStream(FileDescriptor.out), bufferSize, flushMillis, lineBuffered);
+    }
+
+    public synchronized void print(CharSequence text) {
+        write(text);
+    }
+
+    public synchronized void println(CharSequence text) {
+        write(text);
+        endLine();
+    }
+
+    // A number's text is plain ASCII, so it's copied into the buffer straight
+    // from a reused builder and printing one allocates nothing.
+    public synchronized void println(double number) {
+        digits.setLength(0);
+        NumberFormatter.format(number, digits);
+        write(digits);
+        endLine();
+    }
+
+    public synchronized void flush() {
+        try {
+            out.write(buffer, 0, count);
+            out.flush();
+        } catch (IOException error) {
+            // stdout has gone, as with System.out the output is dropped
+        }
+        count = 0;
+    }
+
+    // Nothing waits in the buffer longer than the flush interval, whether or
+    // not anything else is printed in the meantime
+    private void flushEvery() {
+        while (true) {
+            try {
+                Thread.sleep(flushMillis);
+            } catch (InterruptedException error) {
+                return;
+            }
+
+            synchronized (this) {
+                if (count > 0) flush();
+            }
+        }
+    }
+
+    private void endLine() {
+        write(NEWLINE);
+        if (lineBuffered || flushMillis == 0)
+            flush();
+    }
+
+    private void write(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // the rest is left to the UTF-8 encoder, surrogate pairs and all
+                write(text.subSequence(i, length).toString().getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            if (count == buffer.length)
+                flush();
+            buffer[count++] = (byte) c;
+        }
+    }
+
+    private void write(byte[] bytes) {
+        if (bytes.length > buffer.length - count)
+            flush();
+
+        if (bytes.length > buffer.length) {
+            try {
+                out.write(bytes);
+            } catch (IOException error) {
+                // see flush
+            }
+            return;
+        }
+
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+}
@@ -1,6 +1,7 @@
 package com.aidan.cmel;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import static com.aidan.cmel.TokenType.*;
@@ -8,11 +9,15 @@ import static com.aidan.cmel.TokenType.*;
 public class Parser {
 
     private static class ParseError extends RuntimeException {}
-    private final List<Token> tokens;
-    private int current = 0;
+    // Tokens are pulled from the Scanner one at a time, and only the last one
+    // consumed and the one after it are kept
+    private final Iterator<Token> tokens;
+    private Token previous;
+    private Token next;
 
-    public Parser(List<Token> tokens) {
+    public Parser(Iterator<Token> tokens) {
         this.tokens = tokens;
+        this.next = tokens.next();
     }
 
     public List<Statement> parse() {
@@ -24,6 +29,12 @@ public class Parser {
         return statements;
     }
 
+    // The next top-level declaration, or null if it has a syntax error. No more
+    // than one token past it is scanned, so a script can be run as it's parsed.
+    public Statement parseDeclaration() {
+        return declaration();
+    }
+
     private Statement declaration() {
         try {
             if (match(CLASS)) return classDeclaration();
@@ -119,21 +130,8 @@ public class Parser {
 
         Statement body = statement();
 
-        if (increment != null) {
-            body = new Statement.Block(List.of(
-                    body,
-                    new Statement.ExpressionStatement(increment)
-            ));
-        }
-
         if (condition == null) condition = new Expression.Literal(true);
-        body = new Statement.While(condition, body);
-
-        if (initializer != null) body = new Statement.Block(List.of(
-                initializer,
-                body
-        ));
-        return body;
+        return new Statement.For(initializer, condition, increment, body);
     }
 
     private Statement ifStatement() {
@@ -436,20 +434,23 @@ public class Parser {
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            previous = next;
+            next = tokens.next();
+        }
         return previous();
     }
 
-    private boolean isAtEnd() {
+    public boolean isAtEnd() {
         return peek().getType() == EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return next;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 }
 
@@ -1,8 +1,7 @@
 package com.aidan.cmel;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Stack;
 
 public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
@@ -15,21 +14,57 @@ public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Voi
         NONE, CLASS, SUBCLASS
     }
 
+    private static class Local {
+        final int slot;
+        boolean defined = false;
+        boolean captured = false;
+        // run when the variable's scope ends if a closure captured it, to move
+        // its declaration and every use of it over to a Cell
+        final List<Runnable> toCell = new ArrayList<>();
+
+        Local(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    // The function being resolved, or the script itself, like the Compiler struct
+    // in the C implementation. Its locals get the slots of one frame, and a slot
+    // is reused once the block that declared it has ended.
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final Stack<Table<Local>> scopes = new Stack<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        // parameter slots (and 'this') that have to be put in Cells on entry
+        final List<Integer> cells = new ArrayList<>();
+        int slotCount = 0;
+        int frameSize = 0;
+
+        FunctionScope(FunctionScope enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private interface Resolution {
+        void set(Access access, int slot);
+    }
+
     private ClassType currentClass = ClassType.NONE;
 
     private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes;
+    private FunctionScope function = new FunctionScope(null);
     private FunctionType currentFunction = FunctionType.NONE;
 
     public Resolver(Interpreter interpreter) {
         this.interpreter = interpreter;
-        scopes = new Stack<>();
     }
 
     @Override
     public Void visitAssignExpression(Expression.Assign expression) {
         resolve(expression.value);
-        resolveLocal(expression, expression.name);
+        resolveVariable(expression.name.getSymbol(), (access, slot) -> {
+            expression.access = access;
+            expression.slot = slot;
+        });
         return null;
     }
 
@@ -69,7 +104,15 @@ public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Voi
         } else if (currentClass != ClassType.SUBCLASS) {
             Cmel.error(expression.keyword, "Can't use 'super' in a class with no superclass.");
         }
-        resolveLocal(expression, expression.keyword);
+
+        resolveVariable(Symbol.SUPER, (access, slot) -> {
+            expression.access = access;
+            expression.slot = slot;
+        });
+        resolveVariable(Symbol.THIS, (access, slot) -> {
+            expression.thisAccess = access;
+            expression.thisSlot = slot;
+        });
         return null;
     }
 
@@ -101,32 +144,83 @@ public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Voi
 
     @Override
     public Void visitVariableExpression(Expression.Variable expression) {
-        if (!scopes.isEmpty() && scopes.peek().get(expression.name.getLexeme()) == Boolean.FALSE)
-            Cmel.error(expression.name, "Can't read local variable in it's own initializer;");
+        if (!function.scopes.isEmpty()) {
+            Local local = function.scopes.peek().get(expression.name.getSymbol());
+            if (local != null && !local.defined)
+                Cmel.error(expression.name, "Can't read local variable in it's own initializer;");
+        }
 
-        resolveLocal(expression, expression.name);
+        resolveVariable(expression.name.getSymbol(), (access, slot) -> {
+            expression.access = access;
+            expression.slot = slot;
+        });
         return null;
     }
 
-    private void resolveLocal(Expression expression, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.getLexeme())) {
-                interpreter.resolve(expression, scopes.size() - 1 - i);
-                return;
-            }
+    // A variable that isn't one of this function's locals or upvalues is global.
+    // It gets its global slot now even if nothing has defined it yet.
+    private void resolveVariable(Symbol name, Resolution resolution) {
+        Local local = resolveLocal(function, name);
+        if (local != null) {
+            resolution.set(Access.LOCAL, local.slot);
+            local.toCell.add(() -> resolution.set(Access.CELL, local.slot));
+            return;
+        }
+
+        int upvalue = resolveUpvalue(function, name);
+        if (upvalue != -1)
+            resolution.set(Access.UPVALUE, upvalue);
+        else
+            resolution.set(Access.GLOBAL, interpreter.globalSlot(name));
+    }
+
+    private static Local resolveLocal(FunctionScope function, Symbol name) {
+        for (int i = function.scopes.size() - 1; i >= 0; i--) {
+            Local local = function.scopes.get(i).get(name);
+            if (local != null)
+                return local;
         }
+
+        return null;
+    }
+
+    private static int resolveUpvalue(FunctionScope function, Symbol name) {
+        if (function.enclosing == null) return -1;
+
+        Local local = resolveLocal(function.enclosing, name);
+        if (local != null) {
+            local.captured = true;
+            return addUpvalue(function, new Upvalue(true, local.slot));
+        }
+
+        int upvalue = resolveUpvalue(function.enclosing, name);
+        if (upvalue != -1)
+            return addUpvalue(function, new Upvalue(false, upvalue));
+
+        return -1;
+    }
+
+    private static int addUpvalue(FunctionScope function, Upvalue upvalue) {
+        int index = function.upvalues.indexOf(upvalue);
+        if (index != -1) return index;
+
+        function.upvalues.add(upvalue);
+        return function.upvalues.size() - 1;
     }
 
     @Override
     public Void visitAnonFunctionExpression(Expression.AnonFunction expression) {
-        resolveAnonFunction(expression, FunctionType.FUNCTION);
+        FunctionScope resolved = resolveFunction(expression.parameters, expression.body, FunctionType.FUNCTION);
+        expression.frameSize = resolved.frameSize;
+        expression.upvalues = resolved.upvalues.toArray(new Upvalue[0]);
+        expression.cells = toArray(resolved.cells);
         return null;
     }
 
     @Override
     public Void visitBlockStatement(Statement.Block statement) {
         beginScope();
-        resolve(statement.statements);
+        resolveAll(statement.statements);
         endScope();
         return null;
     }
@@ -136,10 +230,13 @@ public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Voi
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(statement.name);
+        declare(statement.name, (access, slot) -> {
+            statement.access = access;
+            statement.slot = slot;
+        });
         define(statement.name);
 
-        if (statement.superclass != null && statement.superclass.name.getLexeme().equals(statement.name.getLexeme())) {
+        if (statement.superclass != null && statement.superclass.name.getSymbol() == statement.name.getSymbol()) {
             Cmel.error(statement.superclass.name, "A class can't inherit from itself.");
         }
 
@@ -148,24 +245,21 @@ public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Voi
             resolve(statement.superclass);
         }
 
+        // only the methods use 'super', so it's always captured and the
+        // Interpreter puts it straight in a Cell
         if (statement.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            statement.superSlot = defineKeyword(Symbol.SUPER).slot;
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Statement.Function method : statement.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.getLexeme().equals("init"))
+            if (method.name.getSymbol() == Symbol.INIT)
                 declaration = FunctionType.INITIALIZER;
 
-            resolveFunction(method, declaration);
+            resolveMethod(method, declaration);
         }
 
-        endScope();
-
         if (statement.superclass != null)
             endScope();
 
@@ -186,19 +280,33 @@ public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Voi
             return null;
         }
 
-        resolveLocal(expression, expression.keyword);
+        resolveVariable(Symbol.THIS, (access, slot) -> {
+            expression.access = access;
+            expression.slot = slot;
+        });
         return null;
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<>());
+        function.scopes.push(new Table<>());
     }
 
     private void endScope() {
-        scopes.pop();
+        Table<Local> scope = function.scopes.pop();
+        scope.forEach((name, local) -> {
+            if (local.captured)
+                local.toCell.forEach(Runnable::run);
+        });
+
+        function.slotCount -= scope.size();
     }
 
     public void resolve(List<Statement> statements) {
+        resolveAll(statements);
+        interpreter.reserveSlots(function.frameSize);
+    }
+
+    private void resolveAll(List<Statement> statements) {
         for (Statement statement : statements)
             resolve(statement);
     }
@@ -227,7 +335,11 @@ public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Voi
 
     @Override
     public Void visitVarStatement(Statement.Var statement) {
-        declare(statement.name);
+        declare(statement.name, (access, slot) -> {
+            statement.access = access;
+            statement.slot = slot;
+        });
+
         if (statement.initializer != null)
             resolve(statement.initializer);
         define(statement.name);
@@ -235,17 +347,38 @@ public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Voi
         return null;
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.getLexeme()))
+    private void declare(Token name, Resolution resolution) {
+        if (function.scopes.isEmpty()) {
+            resolution.set(Access.GLOBAL, interpreter.globalSlot(name.getSymbol()));
+            return;
+        }
+
+        Table<Local> scope = function.scopes.peek();
+        if (scope.get(name.getSymbol()) != null)
             Cmel.error(name, "There is already a variable with this name in scope.");
-        scope.put(name.getLexeme(), false);
+
+        Local local = newLocal();
+        scope.put(name.getSymbol(), local);
+        resolution.set(Access.LOCAL, local.slot);
+        local.toCell.add(() -> resolution.set(Access.CELL, local.slot));
     }
 
     private void define(Token name) {
-        if (scopes.isEmpty()) return;
-        scopes.peek().put(name.getLexeme(), true);
+        if (function.scopes.isEmpty()) return;
+        function.scopes.peek().get(name.getSymbol()).defined = true;
+    }
+
+    private Local defineKeyword(Symbol name) {
+        Local local = newLocal();
+        local.defined = true;
+        function.scopes.peek().put(name, local);
+        return local;
+    }
+
+    private Local newLocal() {
+        Local local = new Local(function.slotCount++);
+        function.frameSize = Math.max(function.frameSize, function.slotCount);
+        return local;
     }
 
     @Override
@@ -255,41 +388,68 @@ public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Voi
         return null;
     }
 
+    @Override
+    public Void visitForStatement(Statement.For statement) {
+        beginScope();
+        if (statement.initializer != null) resolve(statement.initializer);
+        resolve(statement.condition);
+        if (statement.increment != null) resolve(statement.increment);
+        resolve(statement.body);
+        endScope();
+        return null;
+    }
+
     @Override
     public Void visitFunctionStatement(Statement.Function statement) {
-        declare(statement.name);
+        declare(statement.name, (access, slot) -> {
+            statement.access = access;
+            statement.slot = slot;
+        });
         define(statement.name);
 
-        resolveFunction(statement, FunctionType.FUNCTION);
+        resolveMethod(statement, FunctionType.FUNCTION);
         return null;
     }
 
-    private void resolveFunction(Statement.Function function, FunctionType type) {
-        FunctionType enclosingFunction = currentFunction;
-        currentFunction = type;
-
-        beginScope();
-        for (Token param : function.parameters) {
-            declare(param);
-            define(param);
-        }
-        resolve(function.body);
-        endScope();
-        currentFunction = enclosingFunction;
+    private void resolveMethod(Statement.Function statement, FunctionType type) {
+        FunctionScope resolved = resolveFunction(statement.parameters, statement.body, type);
+        statement.frameSize = resolved.frameSize;
+        statement.upvalues = resolved.upvalues.toArray(new Upvalue[0]);
+        statement.cells = toArray(resolved.cells);
     }
 
-    private void resolveAnonFunction(Expression.AnonFunction function, FunctionType type) {
+    private FunctionScope resolveFunction(List<Token> parameters, List<Statement> body, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        FunctionScope resolved = new FunctionScope(function);
+        function = resolved;
 
         beginScope();
-        for (Token param : function.parameters) {
-            declare(param);
+        // a method's receiver lives in the first slot of its own frame
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            Local receiver = defineKeyword(Symbol.THIS);
+            receiver.toCell.add(() -> resolved.cells.add(receiver.slot));
+        }
+        for (Token param : parameters) {
+            declare(param, (access, slot) -> {
+                if (access == Access.CELL)
+                    resolved.cells.add(slot);
+            });
             define(param);
         }
-        resolve(function.body);
+        resolveAll(body);
         endScope();
+
+        function = resolved.enclosing;
         currentFunction = enclosingFunction;
+        return resolved;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = values.get(i);
+        return array;
     }
 
     @Override
@@ -301,6 +461,11 @@ public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Voi
                 Cmel.error(statement.keyword, "Can't return a value from an initializer.");
             }
             resolve(statement.value);
+
+            // nothing is left to do in this frame once the call is made, so the
+            // caller's call can run it in its place
+            if (statement.value instanceof Expression.Call)
+                statement.tailCall = true;
         }
         return null;
     }
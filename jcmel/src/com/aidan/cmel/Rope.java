@@ -0,0 +1,103 @@
+package com.aidan.cmel;
+
+// A long Cmel string built by concatenation. It is the first length characters
+// of a StringBuilder that only ever grows, so appending to the newest rope on a
+// builder is an amortized O(1) append instead of a copy of the whole string.
+// Ropes are as immutable as Strings: appending to an older rope, one the
+// builder has already grown past, copies its prefix into a builder of its own.
+// The flat String is only made when something reads the rope as a whole.
+//
+// An older rope keeps the builder it shares alive, which can be far longer by
+// then, until it's read as a whole: from then on it has a String of its own
+// and lets go of the builder. One that never is, and outlives the newer ropes,
+// holds on to the longer builder. That's the price of not copying on append.
+public final class Rope implements CharSequence {
+    // shorter concatenations are copied into plain Strings as before
+    static final int MIN_LENGTH = 64;
+
+    // null once an older rope has been flattened
+    private StringBuilder builder;
+    private final int length;
+    private String flat;
+
+    private Rope(StringBuilder builder) {
+        this.builder = builder;
+        this.length = builder.length();
+    }
+
+    // left + right for two Cmel strings
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        if (left instanceof Rope rope)
+            return rope.append(right);
+
+        int length = left.length() + right.length();
+        if (length < MIN_LENGTH)
+            return left.toString().concat(right.toString());
+
+        StringBuilder builder = new StringBuilder(length);
+        append(builder, left);
+        append(builder, right);
+        return new Rope(builder);
+    }
+
+    // left + a number, which a rope formats straight onto its builder
+    static CharSequence concat(CharSequence left, double right) {
+        if (left instanceof Rope rope) {
+            StringBuilder target = rope.extend(24);
+            NumberFormatter.format(right, target);
+            return new Rope(target);
+        }
+
+        return concat(left, NumberFormatter.format(right));
+    }
+
+    private Rope append(CharSequence tail) {
+        StringBuilder target = extend(tail.length());
+        append(target, tail);
+        return new Rope(target);
+    }
+
+    // the builder to append to, which is a copy if the builder has moved on
+    private StringBuilder extend(int extra) {
+        if (builder != null && builder.length() == length) return builder;
+
+        // sized for now, and grown as the appends to it need
+        StringBuilder copy = new StringBuilder(length + extra);
+        append(copy, this);
+        return copy;
+    }
+
+    private static void append(StringBuilder builder, CharSequence text) {
+        if (text instanceof Rope rope && rope.builder != null)
+            builder.append(rope.builder, 0, rope.length);
+        else
+            builder.append(text.toString());
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length)
+            throw new IndexOutOfBoundsException(index);
+        return builder != null ? builder.charAt(index) : flat.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            flat = builder.substring(0, length);
+            // the newest rope keeps its builder, so appends to it stay cheap
+            if (builder.length() != length) builder = null;
+        }
+        return flat;
+    }
+}
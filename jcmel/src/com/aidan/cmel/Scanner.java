@@ -1,58 +1,87 @@
 package com.aidan.cmel;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import static com.aidan.cmel.TokenType.*;
 
-public class Scanner {
+// Scans a token at a time, as the Parser asks for them, so the tokens of a
+// script are never all held at once. The last token is always an EOF.
+public class Scanner implements Iterator<Token> {
 
-    private static final Map<String, TokenType> keywords;
+    private static final Table<TokenType> keywords;
 
     static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("or", OR);
-        keywords.put("class", CLASS);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("else", ELSE);
-        keywords.put("for", FOR);
-        keywords.put("false", FALSE);
-        keywords.put("true", TRUE);
-        keywords.put("nil", NIL);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-    }
-    private final String source;
-    private final List<Token> tokens;
+        keywords = new Table<>();
+        keywords.put(Symbol.intern("and"), AND);
+        keywords.put(Symbol.intern("or"), OR);
+        keywords.put(Symbol.intern("class"), CLASS);
+        keywords.put(Symbol.intern("fun"), FUN);
+        keywords.put(Symbol.intern("if"), IF);
+        keywords.put(Symbol.intern("else"), ELSE);
+        keywords.put(Symbol.intern("for"), FOR);
+        keywords.put(Symbol.intern("false"), FALSE);
+        keywords.put(Symbol.intern("true"), TRUE);
+        keywords.put(Symbol.intern("nil"), NIL);
+        keywords.put(Symbol.intern("return"), RETURN);
+        keywords.put(Symbol.SUPER, SUPER);
+        keywords.put(Symbol.THIS, THIS);
+        keywords.put(Symbol.intern("var"), VAR);
+        keywords.put(Symbol.intern("while"), WHILE);
+    }
+    // digits that always fit in a double's 53 bit mantissa
+    private static final int EXACT_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14
+    };
+
+    // Scanned in place: tokens keep offsets into this array rather than
+    // copying their lexemes out of it
+    private final char[] source;
+    private final int end;
+    // what the last scanToken() made, if anything
+    private Token scanned;
+    private boolean scannedEof = false;
 
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
     public Scanner(String source) {
+        this(source.toCharArray(), source.length());
+    }
+
+    // source[0, end) is the script; the array may be longer
+    public Scanner(char[] source, int end) {
         this.source = source;
-        tokens = new ArrayList<>();
+        this.end = end;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !scannedEof;
     }
 
-    public List<Token> scanTokens() {
+    @Override
+    public Token next() {
+        // whitespace, comments and bad characters make no token
         while (!isAtEnd()) {
             start = current;
             scanToken();
+            if (scanned != null) {
+                Token token = scanned;
+                scanned = null;
+                return token;
+            }
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        if (scannedEof) throw new NoSuchElementException();
+        scannedEof = true;
+        return new Token(EOF, "", null, line);
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= end;
     }
 
     private void scanToken() {
@@ -76,7 +105,7 @@ public class Scanner {
             case '<' -> addToken(match('=') ? LESS_EQUAL : LESS);
             case '/' -> {
                 if (match('/'))
-                    while (peek() != '\n') advance();
+                    while (peek() != '\n' && !isAtEnd()) advance();
                 else
                     addToken(SLASH);
             }
@@ -97,12 +126,12 @@ public class Scanner {
     }
 
     private char advance() {
-        return source.charAt(current++);
+        return source[current++];
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (source[current] != expected) return false;
 
         current++;
         return true;
@@ -110,7 +139,7 @@ public class Scanner {
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return source[current];
     }
 
     private void string() {
@@ -128,33 +157,53 @@ public class Scanner {
         advance();
 
         // To get rid of the quotes and get the actual value
-        String value = source.substring(start + 1, current - 1);
+        String value = new String(source, start + 1, current - start - 2);
         addToken(STRING, value);
     }
 
     private void number() {
-        while (isDigit(peek())) advance();
+        // the digits are gathered as they're scanned, leading zeros and all
+        long digits = source[start] - '0';
+        int count = 1;
+        while (isDigit(peek())) {
+            digits = digits * 10 + (advance() - '0');
+            count++;
+        }
 
+        int fraction = 0;
         if (peek() == '.' && isDigit(peekNext())) {
             advance();
-            while(isDigit(peek())) advance();
+            while(isDigit(peek())) {
+                digits = digits * 10 + (advance() - '0');
+                count++;
+                fraction++;
+            }
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        // Both digits and the power of ten are exact, so one division rounds
+        // correctly. Anything longer is left to parseDouble.
+        double value;
+        if (count <= EXACT_DIGITS)
+            value = digits / POWERS_OF_TEN[fraction];
+        else
+            value = Double.parseDouble(new String(source, start, current - start));
+
+        addToken(NUMBER, value);
     }
 
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
+        // interned straight from the source, so a name seen before allocates nothing
+        Symbol symbol = Symbol.intern(source, start, current);
+        TokenType type = keywords.get(symbol);
         if (type == null) type = IDENTIFIER;
-        addToken(type);
+        scanned = new Token(type, symbol, line);
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (current + 1 >= end) return '\0';
+        return source[current + 1];
     }
 
     private boolean isDigit(char c) {
@@ -178,8 +227,7 @@ public class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        scanned = new Token(type, source, start, current - start, literal, line);
     }
 }
 
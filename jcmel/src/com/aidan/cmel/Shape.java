@@ -0,0 +1,42 @@
+package com.aidan.cmel;
+
+// A hidden class for CmelInstance. Every instance that added the same fields in
+// the same order shares one Shape, which maps each field to its slot in the
+// instance's values array. Shapes grow out of the root shape on their CmelClass
+// through cached transitions. Field names can only come from identifiers in the
+// source, so the tree of shapes stays small.
+public class Shape {
+    final CmelClass klass;
+    private final Table<Integer> slots;
+    private final Table<Shape> transitions = new Table<>();
+
+    Shape(CmelClass klass) {
+        this.klass = klass;
+        this.slots = new Table<>();
+    }
+
+    private Shape(Shape parent, Symbol field) {
+        this.klass = parent.klass;
+        this.slots = new Table<>(parent.slots);
+        slots.put(field, slots.size());
+    }
+
+    int slotOf(Symbol field) {
+        Integer slot = slots.get(field);
+        if (slot == null) return -1;
+        return slot;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    Shape withField(Symbol field) {
+        Shape shape = transitions.get(field);
+        if (shape == null) {
+            shape = new Shape(this, field);
+            transitions.put(field, shape);
+        }
+        return shape;
+    }
+}
@@ -0,0 +1,8 @@
+package com.aidan.cmel;
+
+// Type feedback kept on Binary, Unary and Logical nodes. A node starts out
+// UNINITIALIZED, specializes on the operand types it sees first and drops to
+// GENERIC for good as soon as those types change.
+public enum Specialization {
+    UNINITIALIZED, NUMBER, STRING, BOOLEAN, GENERIC
+}
@@ -9,6 +9,7 @@ public abstract class Statement {
         R visitIfStatementStatement(IfStatement statement);
         R visitVarStatement(Var statement);
         R visitWhileStatement(While statement);
+        R visitForStatement(For statement);
         R visitFunctionStatement(Function statement);
         R visitReturnStatement(Return statement);
         R visitClassStatement(Class statement);
@@ -56,6 +57,8 @@ public abstract class Statement {
     static class Var extends Statement {
         final Token name;
         final  Expression initializer;
+        Access access = Access.GLOBAL;
+        int slot = -1;
         public Var(Token name, Expression initializer) {
             this.name = name;
             this.initializer = initializer;
@@ -69,6 +72,8 @@ public abstract class Statement {
     static class While extends Statement {
         final Expression condition;
         final  Statement body;
+        int iterations = 0;
+        ClosureCompiler.CompiledStatement compiled = null;
         public While(Expression condition, Statement body) {
             this.condition = condition;
             this.body = body;
@@ -79,10 +84,36 @@ public abstract class Statement {
             return visitor.visitWhileStatement(this);
         }
     }
+    static class For extends Statement {
+        final Statement initializer;
+        final  Expression condition;
+        final  Expression increment;
+        final  Statement body;
+        int iterations = 0;
+        ClosureCompiler.CompiledStatement compiled = null;
+        public For(Statement initializer, Expression condition, Expression increment, Statement body) {
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStatement(this);
+        }
+    }
     static class Function extends Statement {
         final Token name;
         final  List<Token> parameters;
         final  List<Statement> body;
+        int calls = 0;
+        ClosureCompiler.CompiledStatement compiled = null;
+        Access access = Access.GLOBAL;
+        int slot = -1;
+        int frameSize = 0;
+        Upvalue[] upvalues = null;
+        int[] cells = null;
         public Function(Token name, List<Token> parameters, List<Statement> body) {
             this.name = name;
             this.parameters = parameters;
@@ -97,6 +128,7 @@ public abstract class Statement {
     static class Return extends Statement {
         final Token keyword;
         final  Expression value;
+        boolean tailCall = false;
         public Return(Token keyword, Expression value) {
             this.keyword = keyword;
             this.value = value;
@@ -111,6 +143,9 @@ public abstract class Statement {
         final Token name;
         final  Expression.Variable superclass;
         final  List<Statement.Function> methods;
+        Access access = Access.GLOBAL;
+        int slot = -1;
+        int superSlot = -1;
         public Class(Token name, Expression.Variable superclass, List<Statement.Function> methods) {
             this.name = name;
             this.superclass = superclass;
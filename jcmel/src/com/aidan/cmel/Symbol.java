@@ -0,0 +1,87 @@
+package com.aidan.cmel;
+
+// An identifier, interned by the Scanner so that every occurrence of a name is
+// the same Symbol, like the interned ObjStrings of the C VM. Symbols compare by
+// identity and carry their hash, so a Table never hashes or compares characters.
+public final class Symbol {
+    final String name;
+    final int hash;
+
+    private Symbol(String name, int hash) {
+        this.name = name;
+        this.hash = hash;
+    }
+
+    // Every Symbol there is, by open addressing, which is what tableFindString
+    // does for the C VM's string table. Always a power of two in size.
+    private static Symbol[] symbols = new Symbol[256];
+    private static int count = 0;
+
+    static final Symbol INIT = intern("init");
+    static final Symbol THIS = intern("this");
+    static final Symbol SUPER = intern("super");
+
+    public static Symbol intern(String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    // The Symbol for source[start, end). Its characters are only copied out of
+    // the source the first time the name is seen.
+    static Symbol intern(char[] source, int start, int end) {
+        int length = end - start;
+        int hash = hash(source, start, end);
+
+        int mask = symbols.length - 1;
+        for (int i = hash & mask; symbols[i] != null; i = (i + 1) & mask) {
+            Symbol symbol = symbols[i];
+            if (symbol.hash == hash && symbol.name.length() == length && matches(symbol.name, source, start))
+                return symbol;
+        }
+
+        Symbol symbol = new Symbol(new String(source, start, length), hash);
+        if (++count > symbols.length * 3 / 4)
+            grow();
+        insert(symbols, symbol);
+        return symbol;
+    }
+
+    private static boolean matches(String name, char[] source, int start) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source[start + i])
+                return false;
+        }
+        return true;
+    }
+
+    private static void grow() {
+        Symbol[] grown = new Symbol[symbols.length * 2];
+        for (Symbol symbol : symbols) {
+            if (symbol != null)
+                insert(grown, symbol);
+        }
+        symbols = grown;
+    }
+
+    private static void insert(Symbol[] table, Symbol symbol) {
+        int mask = table.length - 1;
+        int i = symbol.hash & mask;
+        while (table[i] != null)
+            i = (i + 1) & mask;
+        table[i] = symbol;
+    }
+
+    // FNV-1a, as hashString in the C VM
+    private static int hash(char[] source, int start, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash ^= source[i];
+            hash *= 16777619;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,93 @@
+package com.aidan.cmel;
+
+import java.util.function.BiConsumer;
+
+// A hash table keyed by Symbol, after table.c in the C VM: open addressing with
+// linear probing, grown at 75% load. Keys are interned, so a probe is a
+// reference comparison and the hash is never recomputed. Nothing is ever
+// deleted from one, so there are no tombstones.
+public class Table<V> {
+    private static final int MIN_CAPACITY = 8;
+
+    private Symbol[] keys;
+    private Object[] values;
+    private int count = 0;
+
+    public Table() {
+        keys = new Symbol[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+    }
+
+    public Table(Table<V> other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        count = other.count;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Symbol key) {
+        int mask = keys.length - 1;
+        for (int i = key.hash & mask; ; i = (i + 1) & mask) {
+            Symbol entry = keys[i];
+            if (entry == key) return (V) values[i];
+            if (entry == null) return null;
+        }
+    }
+
+    public void put(Symbol key, V value) {
+        int i = find(keys, key);
+        if (keys[i] == null) {
+            if (count + 1 > keys.length * 3 / 4) {
+                grow();
+                i = find(keys, key);
+            }
+            keys[i] = key;
+            count++;
+        }
+        values[i] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void putAll(Table<V> other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != null)
+                put(other.keys[i], (V) other.values[i]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<Symbol, V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null)
+                action.accept(keys[i], (V) values[i]);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // the key's entry, or the empty one where it would go
+    private static int find(Symbol[] keys, Symbol key) {
+        int mask = keys.length - 1;
+        int i = key.hash & mask;
+        while (keys[i] != null && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void grow() {
+        Symbol[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new Symbol[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+
+            int j = find(keys, oldKeys[i]);
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
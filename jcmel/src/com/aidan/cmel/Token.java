@@ -2,19 +2,52 @@ package com.aidan.cmel;
 
 public class Token {
     private final TokenType type;
-    private final String lexeme;
     private final Object literal;
     private final int line;
+    // for identifiers and keywords, whose lexeme is the Symbol's name
+    private final Symbol symbol;
+
+    // Where the lexeme is in the Scanner's source. Most lexemes are only wanted
+    // for an error message, so the String is made the first time one is asked for.
+    private final char[] source;
+    private final int start;
+    private final int length;
+    private String lexeme;
 
     public Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = null;
+        this.source = null;
+        this.start = 0;
+        this.length = lexeme.length();
+    }
+
+    public Token(TokenType type, char[] source, int start, int length, Object literal, int line) {
+        this.type = type;
+        this.source = source;
+        this.start = start;
+        this.length = length;
+        this.literal = literal;
+        this.line = line;
+        this.symbol = null;
+    }
+
+    public Token(TokenType type, Symbol symbol, int line) {
+        this.type = type;
+        this.lexeme = symbol.name;
+        this.literal = null;
+        this.line = line;
+        this.symbol = symbol;
+        this.source = null;
+        this.start = 0;
+        this.length = symbol.name.length();
     }
 
     public String toString() {
-        return type + " " + lexeme + " " + literal;
+        return type + " " + getLexeme() + " " + literal;
     }
 
     public TokenType getType() {
@@ -22,6 +55,8 @@ public class Token {
     }
 
     public String getLexeme() {
+        if (lexeme == null)
+            lexeme = new String(source, start, length);
         return lexeme;
     }
 
@@ -32,4 +67,8 @@ public class Token {
     public int getLine() {
         return line;
     }
+
+    public Symbol getSymbol() {
+        return symbol;
+    }
 }
@@ -0,0 +1,15 @@
+package com.aidan.cmel;
+
+// Thrown by Interpreter.evaluateDouble when an expression that has so far only
+// produced numbers produces something else. It carries the boxed value so the
+// caller can finish the operation generically. Every node it passes through
+// drops to GENERIC and stops asking for doubles, so it's rare enough to go
+// without a stack trace.
+class UnexpectedResult extends RuntimeException {
+    final Object value;
+
+    UnexpectedResult(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
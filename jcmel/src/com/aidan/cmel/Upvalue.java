@@ -0,0 +1,7 @@
+package com.aidan.cmel;
+
+// How a new closure finds one of the variables it captures: a Cell in the
+// enclosing call's frame, or one of the enclosing closure's own upvalues. The
+// isLocal/index pairs that follow OP_CLOSURE in the C VM.
+public record Upvalue(boolean isLocal, int index) {
+}
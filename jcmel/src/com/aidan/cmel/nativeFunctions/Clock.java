@@ -3,11 +3,14 @@ package com.aidan.cmel.nativeFunctions;
 import com.aidan.cmel.CmelCallable;
 import com.aidan.cmel.Interpreter;
 
-import java.util.List;
-
 public class Clock implements CmelCallable {
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return call0(interpreter);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
         return (double)System.currentTimeMillis() / 1000;
     }
 
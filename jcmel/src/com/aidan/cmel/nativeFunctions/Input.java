@@ -2,26 +2,21 @@ package com.aidan.cmel.nativeFunctions;
 
 import com.aidan.cmel.CmelCallable;
 import com.aidan.cmel.Interpreter;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.List;
+import com.aidan.cmel.LineReader;
 
 public class Input implements CmelCallable {
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        InputStreamReader inputStreamReader = new InputStreamReader(System.in);
-        BufferedReader reader = new BufferedReader(inputStreamReader);
-        try {
-            String input = reader.readLine();
-            if (isNumeric(input))
-                return Double.parseDouble(input);
-            else
-                return input;
-        } catch (IOException e) {
-            return "";
-        }
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return call0(interpreter);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        // whatever was printed as a prompt has to be seen before waiting on it
+        if (!interpreter.getInput().ready())
+            interpreter.getOutput().flush();
+
+        return LineReader.value(interpreter.getInput().readLine());
     }
 
     @Override
@@ -33,16 +28,4 @@ public class Input implements CmelCallable {
     public String toString() {
         return "<native fn>";
     }
-
-    public static boolean isNumeric(String strNum) {
-        if (strNum == null) {
-            return false;
-        }
-        try {
-            double d = Double.parseDouble(strNum);
-        } catch (NumberFormatException nfe) {
-            return false;
-        }
-        return true;
-    }
 }
@@ -3,26 +3,19 @@ package com.aidan.cmel.nativeFunctions;
 import com.aidan.cmel.CmelCallable;
 import com.aidan.cmel.Interpreter;
 
-import java.util.List;
-
 public class Print implements CmelCallable {
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        System.out.println(stringify(arguments.get(0)));
-        return null;
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return call1(interpreter, arguments[0]);
     }
 
-    private String stringify(Object value) {
-        if (value == null) return "nil";
-
-        if (value instanceof Double) {
-            String text = value.toString();
-            if (text.endsWith(".0"))
-                text = text.substring(0, text.length()-2);
-            return text;
-        }
-
-        return value.toString();
+    @Override
+    public Object call1(Interpreter interpreter, Object value) {
+        if (value instanceof Double number)
+            interpreter.getOutput().println(number);
+        else
+            interpreter.getOutput().println(Interpreter.stringify(value));
+        return null;
     }
 
     @Override
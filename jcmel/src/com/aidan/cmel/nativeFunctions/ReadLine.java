@@ -0,0 +1,33 @@
+package com.aidan.cmel.nativeFunctions;
+
+import com.aidan.cmel.CmelCallable;
+import com.aidan.cmel.Interpreter;
+
+// The next line of stdin as it is, or nil once stdin has run out, so a script
+// can work through its input a line at a time:
+//   for (var line = readLine(); line != nil; line = readLine()) ...
+public class ReadLine implements CmelCallable {
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return call0(interpreter);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        // see Input, but output isn't held up while more input is already waiting
+        if (!interpreter.getInput().ready())
+            interpreter.getOutput().flush();
+
+        return interpreter.getInput().readLine();
+    }
+
+    @Override
+    public int arity() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
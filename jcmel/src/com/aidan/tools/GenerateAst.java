@@ -14,31 +14,32 @@ public class GenerateAst {
         String outputDir = args[0];
 
         defineAst(outputDir, "Expression", List.of(
-                "Assign : Token name, Expression value",
+                "Assign : Token name, Expression value | Access access = Access.GLOBAL, int slot = -1",
                 "Ternary : Expression test, Token question, Expression left, Token colon, Expression right",
-                "Binary : Expression left, Token operator, Expression right",
-                "Logical: Expression left, Token operator, Expression right",
+                "Binary : Expression left, Token operator, Expression right | Specialization specialization = Specialization.UNINITIALIZED",
+                "Logical: Expression left, Token operator, Expression right | Specialization specialization = Specialization.UNINITIALIZED",
                 "Grouping : Expression expression",
                 "Literal : Object value",
-                "Unary : Token operator, Expression right",
+                "Unary : Token operator, Expression right | Specialization specialization = Specialization.UNINITIALIZED",
                 "Call : Expression callee, Token paren, List<Expression> arguments",
-                "Get : Expression object, Token name",
-                "Set : Expression object, Token name, Expression value",
-                "Super : Token keyword, Token method",
-                "This : Token keyword",
-                "Variable : Token name",
-                "AnonFunction : List<Token> parameters, List<Statement> body"
+                "Get : Expression object, Token name | InlineCache cache = new InlineCache()",
+                "Set : Expression object, Token name, Expression value | InlineCache cache = new InlineCache()",
+                "Super : Token keyword, Token method | Access access = Access.GLOBAL, int slot = -1, Access thisAccess = Access.GLOBAL, int thisSlot = -1",
+                "This : Token keyword | Access access = Access.GLOBAL, int slot = -1",
+                "Variable : Token name | Access access = Access.GLOBAL, int slot = -1",
+                "AnonFunction : List<Token> parameters, List<Statement> body | int calls = 0, ClosureCompiler.CompiledStatement compiled = null, int frameSize = 0, Upvalue[] upvalues = null, int[] cells = null"
         ));
 
         defineAst(outputDir, "Statement", List.of(
                 "Block : List<Statement> statements",
                 "ExpressionStatement : Expression expression",
                 "IfStatement : Expression condition, Statement thenBranch, Statement elseBranch",
-                "Var : Token name, Expression initializer",
-                "While : Expression condition, Statement body",
-                "Function : Token name, List<Token> parameters, List<Statement> body",
-                "Return : Token keyword, Expression value",
-                "Class : Token name, Expression.Variable superclass, List<Statement.Function> methods"
+                "Var : Token name, Expression initializer | Access access = Access.GLOBAL, int slot = -1",
+                "While : Expression condition, Statement body | int iterations = 0, ClosureCompiler.CompiledStatement compiled = null",
+                "For : Statement initializer, Expression condition, Expression increment, Statement body | int iterations = 0, ClosureCompiler.CompiledStatement compiled = null",
+                "Function : Token name, List<Token> parameters, List<Statement> body | int calls = 0, ClosureCompiler.CompiledStatement compiled = null, Access access = Access.GLOBAL, int slot = -1, int frameSize = 0, Upvalue[] upvalues = null, int[] cells = null",
+                "Return : Token keyword, Expression value | boolean tailCall = false",
+                "Class : Token name, Expression.Variable superclass, List<Statement.Function> methods | Access access = Access.GLOBAL, int slot = -1, int superSlot = -1"
         ));
     }
 
@@ -58,15 +59,16 @@ public class GenerateAst {
 
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fields = type.split(":")[1].split("\\|");
+            String state = fields.length > 1 ? fields[1].trim() : null;
+            defineType(writer, baseName, className, fields[0].trim(), state);
         }
 
         writer.print("}");
         writer.close();
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fields) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fields, String state) {
         String[] fieldList = fields.split(",");
         writer.print(("static class " + className + " extends " + baseName + " {").indent(4));
 
@@ -75,6 +77,13 @@ public class GenerateAst {
             writer.print(("final " + field + ";").indent(8));
         }
 
+        // filled in after parsing (e.g. by the Resolver), so these can't be final
+        if (state != null) {
+            for (String field : state.split(",")) {
+                writer.print((field.trim() + ";").indent(8));
+            }
+        }
+
         // constructor
         writer.print(("public " + className + "(" + fields + ") {").indent(8));
         for (String field : fieldList) {